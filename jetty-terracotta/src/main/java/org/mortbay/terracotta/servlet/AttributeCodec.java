@@ -0,0 +1,48 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A compact binary encoding for session attribute values of a given class.
+ *
+ * @see AttributeCodecs
+ */
+public interface AttributeCodec
+{
+    /**
+     * @param value the value to encode, of the class this codec has been registered for
+     * @return whether this codec can encode the given value; when false, the value is encoded
+     * with Java serialization
+     */
+    public boolean canEncode(Object value);
+
+    /**
+     * @param value the value to encode
+     * @param output the output to write the encoded value to
+     * @throws IOException if the value cannot be encoded
+     */
+    public void encode(Object value, DataOutputStream output) throws IOException;
+
+    /**
+     * @param input the input to read the encoded value from
+     * @return the decoded value
+     * @throws IOException if the value cannot be decoded
+     */
+    public Object decode(DataInputStream input) throws IOException;
+}
@@ -0,0 +1,683 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A registry of {@link AttributeCodec}s, used to encode session attribute values when they are stored
+ * in serialized form, see {@link TerracottaSessionManager#setSerializedAttributes(boolean)}.
+ * <br />
+ * Each encoded value starts with a tag byte that identifies the codec. Built-in codecs handle
+ * <code>String</code>, boxed primitives, <code>byte[]</code>, and <code>HashMap</code>,
+ * <code>LinkedHashMap</code> and <code>ArrayList</code> whose elements are handled by built-in codecs
+ * themselves; applications can register codecs for their own classes with tags from
+ * {@link #MIN_APPLICATION_TAG} to 255. Values of other classes are encoded with Java serialization.
+ * <br />
+ * Codecs are looked up by the exact class of the value, so that the class is preserved when decoding.
+ * Tags are written in the shared session data, so they must be the same on all nodes of the cluster.
+ * <br />
+ * Encoded values larger than the compression threshold are compressed with deflate, if that makes them
+ * smaller, see {@link #setCompressionThreshold(int)}; compression statistics are available from this class.
+ */
+public class AttributeCodecs
+{
+    public static final int MIN_APPLICATION_TAG = 64;
+
+    private static final int SERIALIZED = 0;
+    private static final int NULL = 1;
+    private static final int STRING = 2;
+    private static final int INTEGER = 3;
+    private static final int LONG = 4;
+    private static final int BOOLEAN = 5;
+    private static final int DOUBLE = 6;
+    private static final int FLOAT = 7;
+    private static final int SHORT = 8;
+    private static final int BYTE = 9;
+    private static final int CHARACTER = 10;
+    private static final int BYTES = 11;
+    private static final int HASH_MAP = 12;
+    private static final int LINKED_HASH_MAP = 13;
+    private static final int ARRAY_LIST = 14;
+    private static final int COMPRESSED = 63;
+
+    private final Map<Class<?>, Integer> _tags = new ConcurrentHashMap<Class<?>, Integer>();
+    private final AttributeCodec[] _codecs = new AttributeCodec[256];
+    private final AtomicLong _compressedValues = new AtomicLong();
+    private final AtomicLong _uncompressedBytes = new AtomicLong();
+    private final AtomicLong _compressedBytes = new AtomicLong();
+    private final AtomicLong _compressionNanos = new AtomicLong();
+    private final AtomicLong _decompressionNanos = new AtomicLong();
+    private volatile int _compressionThreshold = -1;
+    private volatile int _compressionLevel = Deflater.BEST_SPEED;
+
+    public AttributeCodecs()
+    {
+        register(String.class, STRING, new StringCodec());
+        register(Integer.class, INTEGER, new IntegerCodec());
+        register(Long.class, LONG, new LongCodec());
+        register(Boolean.class, BOOLEAN, new BooleanCodec());
+        register(Double.class, DOUBLE, new DoubleCodec());
+        register(Float.class, FLOAT, new FloatCodec());
+        register(Short.class, SHORT, new ShortCodec());
+        register(Byte.class, BYTE, new ByteCodec());
+        register(Character.class, CHARACTER, new CharacterCodec());
+        register(byte[].class, BYTES, new BytesCodec());
+        register(HashMap.class, HASH_MAP, new MapCodec(false));
+        register(LinkedHashMap.class, LINKED_HASH_MAP, new MapCodec(true));
+        register(ArrayList.class, ARRAY_LIST, new ListCodec());
+    }
+
+    /**
+     * Registers an application codec.
+     *
+     * @param type the exact class of the values the codec encodes
+     * @param tag the tag that identifies the codec in the encoded values, from {@link #MIN_APPLICATION_TAG} to 255
+     * @param codec the codec
+     */
+    public void addCodec(Class<?> type, int tag, AttributeCodec codec)
+    {
+        if (tag < MIN_APPLICATION_TAG || tag > 255)
+            throw new IllegalArgumentException("Invalid tag " + tag + ", must be between " + MIN_APPLICATION_TAG + " and 255");
+        register(type, tag, codec);
+    }
+
+    private synchronized void register(Class<?> type, int tag, AttributeCodec codec)
+    {
+        if (_codecs[tag] != null)
+            throw new IllegalArgumentException("Tag " + tag + " already registered for " + _codecs[tag]);
+        _codecs[tag] = codec;
+        _tags.put(type, tag);
+    }
+
+    /**
+     * Checks only the type of the given value, not the objects it refers to: a value that can be encoded
+     * according to this method may still fail to encode, see {@link #encode(Object)}.
+     *
+     * @param value the value to check
+     * @return whether the value can be encoded, either by a codec or with Java serialization
+     */
+    public boolean canEncode(Object value)
+    {
+        return value == null || value instanceof Serializable || _tags.containsKey(value.getClass());
+    }
+
+    /**
+     * @param value the value to encode
+     * @return the encoded value
+     * @throws IOException if the value cannot be encoded
+     */
+    public byte[] encode(Object value) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        encode(value, output);
+        output.close();
+        byte[] result = bytes.toByteArray();
+        int threshold = _compressionThreshold;
+        if (threshold >= 0 && result.length > threshold) result = compress(result);
+        return result;
+    }
+
+    /**
+     * @param value the value to encode
+     * @return the size in bytes of the encoded value, before compression
+     * @throws IOException if the value cannot be encoded
+     */
+    public int getEncodedSize(Object value) throws IOException
+    {
+        DataOutputStream output = new DataOutputStream(new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length)
+            {
+            }
+        });
+        encode(value, output);
+        output.flush();
+        return output.size();
+    }
+
+    /**
+     * @param data the encoded value
+     * @return the decoded value
+     * @throws IOException if the value cannot be decoded
+     * @throws ClassNotFoundException if the class of a value encoded with Java serialization cannot be found
+     */
+    public Object decode(byte[] data) throws IOException, ClassNotFoundException
+    {
+        if (data.length > 0 && (data[0] & 0xFF) == COMPRESSED) data = decompress(data);
+        return decode(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    /**
+     * @param data the encoded value
+     * @return the compressed value, made of the compressed tag, the length of the encoded value and the
+     * deflated encoded value, or the encoded value itself if compression does not make it smaller
+     */
+    private byte[] compress(byte[] data)
+    {
+        long start = System.nanoTime();
+        Deflater deflater = new Deflater(_compressionLevel);
+        try
+        {
+            deflater.setInput(data);
+            deflater.finish();
+            // Give up if the compressed value is not smaller
+            byte[] buffer = new byte[data.length];
+            int length = 5;
+            while (!deflater.finished() && length < buffer.length)
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            if (!deflater.finished()) return data;
+
+            buffer[0] = (byte)COMPRESSED;
+            buffer[1] = (byte)(data.length >>> 24);
+            buffer[2] = (byte)(data.length >>> 16);
+            buffer[3] = (byte)(data.length >>> 8);
+            buffer[4] = (byte)data.length;
+            byte[] result = new byte[length];
+            System.arraycopy(buffer, 0, result, 0, length);
+
+            _compressedValues.incrementAndGet();
+            _uncompressedBytes.addAndGet(data.length);
+            _compressedBytes.addAndGet(length);
+            return result;
+        }
+        finally
+        {
+            deflater.end();
+            _compressionNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private byte[] decompress(byte[] data) throws IOException
+    {
+        long start = System.nanoTime();
+        Inflater inflater = new Inflater();
+        try
+        {
+            int length = ((data[1] & 0xFF) << 24) | ((data[2] & 0xFF) << 16) | ((data[3] & 0xFF) << 8) | (data[4] & 0xFF);
+            byte[] result = new byte[length];
+            inflater.setInput(data, 5, data.length - 5);
+            int inflated = 0;
+            while (inflated < length && !inflater.finished())
+            {
+                int count = inflater.inflate(result, inflated, length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                inflated += count;
+            }
+            if (inflated != length) throw new IOException("Invalid compressed value, expected " + length + " bytes, inflated " + inflated);
+            return result;
+        }
+        catch (DataFormatException x)
+        {
+            throw new IOException("Invalid compressed value: " + x.getMessage());
+        }
+        finally
+        {
+            inflater.end();
+            _decompressionNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @param compressionThreshold the size in bytes above which encoded values are compressed,
+     * or a negative value to disable compression
+     */
+    public void setCompressionThreshold(int compressionThreshold)
+    {
+        _compressionThreshold = compressionThreshold;
+    }
+
+    public int getCompressionThreshold()
+    {
+        return _compressionThreshold;
+    }
+
+    /**
+     * @param compressionLevel the deflate compression level, from 0 to 9
+     * @see Deflater#setLevel(int)
+     */
+    public void setCompressionLevel(int compressionLevel)
+    {
+        if (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Invalid compression level " + compressionLevel);
+        _compressionLevel = compressionLevel;
+    }
+
+    public int getCompressionLevel()
+    {
+        return _compressionLevel;
+    }
+
+    /**
+     * @return the number of values that have been compressed
+     */
+    public long getCompressedValues()
+    {
+        return _compressedValues.get();
+    }
+
+    /**
+     * @return the size in bytes of the values that have been compressed, before compression
+     */
+    public long getUncompressedBytes()
+    {
+        return _uncompressedBytes.get();
+    }
+
+    /**
+     * @return the size in bytes of the values that have been compressed, after compression
+     */
+    public long getCompressedBytes()
+    {
+        return _compressedBytes.get();
+    }
+
+    /**
+     * @return the ratio between the compressed and the uncompressed size of the values that have been compressed
+     */
+    public double getCompressionRatio()
+    {
+        long uncompressed = getUncompressedBytes();
+        return uncompressed == 0 ? 1D : (double)getCompressedBytes() / uncompressed;
+    }
+
+    /**
+     * @return the time in milliseconds spent compressing values, including those that did not get smaller
+     */
+    public long getCompressionTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(_compressionNanos.get());
+    }
+
+    /**
+     * @return the time in milliseconds spent decompressing values
+     */
+    public long getDecompressionTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(_decompressionNanos.get());
+    }
+
+    public void resetCompressionStatistics()
+    {
+        _compressedValues.set(0);
+        _uncompressedBytes.set(0);
+        _compressedBytes.set(0);
+        _compressionNanos.set(0);
+        _decompressionNanos.set(0);
+    }
+
+    protected void encode(Object value, DataOutputStream output) throws IOException
+    {
+        if (value == null)
+        {
+            output.writeByte(NULL);
+            return;
+        }
+
+        AttributeCodec codec = codecFor(value);
+        if (codec != null)
+        {
+            output.writeByte(_tags.get(value.getClass()));
+            codec.encode(value, output);
+        }
+        else
+        {
+            output.writeByte(SERIALIZED);
+            ObjectOutputStream serializer = new ObjectOutputStream(output);
+            serializer.writeObject(value);
+            serializer.flush();
+        }
+    }
+
+    protected Object decode(DataInputStream input) throws IOException, ClassNotFoundException
+    {
+        int tag = input.readUnsignedByte();
+        switch (tag)
+        {
+            case NULL:
+                return null;
+            case SERIALIZED:
+                ObjectInputStream deserializer = new ClassLoadingObjectInputStream(input);
+                return deserializer.readObject();
+            default:
+                AttributeCodec codec = _codecs[tag];
+                if (codec == null) throw new IOException("Unknown codec tag " + tag);
+                return codec.decode(input);
+        }
+    }
+
+    private AttributeCodec codecFor(Object value)
+    {
+        Integer tag = _tags.get(value.getClass());
+        if (tag == null) return null;
+        AttributeCodec codec = _codecs[tag];
+        return codec.canEncode(value) ? codec : null;
+    }
+
+    /**
+     * @param value the value to check
+     * @return whether the value is null or is handled by a built-in codec for a non-collection class
+     */
+    private boolean isScalar(Object value)
+    {
+        if (value == null) return true;
+        Integer tag = _tags.get(value.getClass());
+        return tag != null && tag < HASH_MAP;
+    }
+
+    private static class StringCodec implements AttributeCodec
+    {
+        public boolean canEncode(Object value)
+        {
+            return true;
+        }
+
+        public void encode(Object value, DataOutputStream output) throws IOException
+        {
+            // Not using writeUTF(), that is limited to 64 KiB
+            byte[] bytes = ((String)value).getBytes("UTF-8");
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+
+        public Object decode(DataInputStream input) throws IOException
+        {
+            byte[] bytes = new byte[input.readInt()];
+            input.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+    }
+
+    private static class IntegerCodec implements AttributeCodec
+    {
+        public boolean canEncode(Object value)
+        {
+            return true;
+        }
+
+        public void encode(Object value, DataOutputStream output) throws IOException
+        {
+            output.writeInt((Integer)value);
+        }
+
+        public Object decode(DataInputStream input) throws IOException
+        {
+            return input.readInt();
+        }
+    }
+
+    private static class LongCodec implements AttributeCodec
+    {
+        public boolean canEncode(Object value)
+        {
+            return true;
+        }
+
+        public void encode(Object value, DataOutputStream output) throws IOException
+        {
+            output.writeLong((Long)value);
+        }
+
+        public Object decode(DataInputStream input) throws IOException
+        {
+            return input.readLong();
+        }
+    }
+
+    private static class BooleanCodec implements AttributeCodec
+    {
+        public boolean canEncode(Object value)
+        {
+            return true;
+        }
+
+        public void encode(Object value, DataOutputStream output) throws IOException
+        {
+            output.writeBoolean((Boolean)value);
+        }
+
+        public Object decode(DataInputStream input) throws IOException
+        {
+            return input.readBoolean();
+        }
+    }
+
+    private static class DoubleCodec implements AttributeCodec
+    {
+        public boolean canEncode(Object value)
+        {
+            return true;
+        }
+
+        public void encode(Object value, DataOutputStream output) throws IOException
+        {
+            output.writeDouble((Double)value);
+        }
+
+        public Object decode(DataInputStream input) throws IOException
+        {
+            return input.readDouble();
+        }
+    }
+
+    private static class FloatCodec implements AttributeCodec
+    {
+        public boolean canEncode(Object value)
+        {
+            return true;
+        }
+
+        public void encode(Object value, DataOutputStream output) throws IOException
+        {
+            output.writeFloat((Float)value);
+        }
+
+        public Object decode(DataInputStream input) throws IOException
+        {
+            return input.readFloat();
+        }
+    }
+
+    private static class ShortCodec implements AttributeCodec
+    {
+        public boolean canEncode(Object value)
+        {
+            return true;
+        }
+
+        public void encode(Object value, DataOutputStream output) throws IOException
+        {
+            output.writeShort((Short)value);
+        }
+
+        public Object decode(DataInputStream input) throws IOException
+        {
+            return input.readShort();
+        }
+    }
+
+    private static class ByteCodec implements AttributeCodec
+    {
+        public boolean canEncode(Object value)
+        {
+            return true;
+        }
+
+        public void encode(Object value, DataOutputStream output) throws IOException
+        {
+            output.writeByte((Byte)value);
+        }
+
+        public Object decode(DataInputStream input) throws IOException
+        {
+            return input.readByte();
+        }
+    }
+
+    private static class CharacterCodec implements AttributeCodec
+    {
+        public boolean canEncode(Object value)
+        {
+            return true;
+        }
+
+        public void encode(Object value, DataOutputStream output) throws IOException
+        {
+            output.writeChar((Character)value);
+        }
+
+        public Object decode(DataInputStream input) throws IOException
+        {
+            return input.readChar();
+        }
+    }
+
+    private static class BytesCodec implements AttributeCodec
+    {
+        public boolean canEncode(Object value)
+        {
+            return true;
+        }
+
+        public void encode(Object value, DataOutputStream output) throws IOException
+        {
+            byte[] bytes = (byte[])value;
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+
+        public Object decode(DataInputStream input) throws IOException
+        {
+            byte[] bytes = new byte[input.readInt()];
+            input.readFully(bytes);
+            return bytes;
+        }
+    }
+
+    /**
+     * Encodes maps whose keys and values are scalars; maps containing other objects are encoded
+     * with Java serialization, that preserves object identity within the map.
+     */
+    private class MapCodec implements AttributeCodec
+    {
+        private final boolean _linked;
+
+        private MapCodec(boolean linked)
+        {
+            _linked = linked;
+        }
+
+        public boolean canEncode(Object value)
+        {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet())
+            {
+                if (!isScalar(entry.getKey()) || !isScalar(entry.getValue())) return false;
+            }
+            return true;
+        }
+
+        public void encode(Object value, DataOutputStream output) throws IOException
+        {
+            Map<?, ?> map = (Map<?, ?>)value;
+            output.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet())
+            {
+                AttributeCodecs.this.encode(entry.getKey(), output);
+                AttributeCodecs.this.encode(entry.getValue(), output);
+            }
+        }
+
+        public Object decode(DataInputStream input) throws IOException
+        {
+            int size = input.readInt();
+            Map<Object, Object> result = _linked ? new LinkedHashMap<Object, Object>() : new HashMap<Object, Object>();
+            for (int i = 0; i < size; ++i)
+                result.put(decodeScalar(input), decodeScalar(input));
+            return result;
+        }
+    }
+
+    /**
+     * Encodes lists whose elements are scalars; lists containing other objects are encoded
+     * with Java serialization, that preserves object identity within the list.
+     */
+    private class ListCodec implements AttributeCodec
+    {
+        public boolean canEncode(Object value)
+        {
+            for (Object element : (List<?>)value)
+            {
+                if (!isScalar(element)) return false;
+            }
+            return true;
+        }
+
+        public void encode(Object value, DataOutputStream output) throws IOException
+        {
+            List<?> list = (List<?>)value;
+            output.writeInt(list.size());
+            for (Object element : list)
+                AttributeCodecs.this.encode(element, output);
+        }
+
+        public Object decode(DataInputStream input) throws IOException
+        {
+            int size = input.readInt();
+            List<Object> result = new ArrayList<Object>(size);
+            for (int i = 0; i < size; ++i)
+                result.add(decodeScalar(input));
+            return result;
+        }
+    }
+
+    private Object decodeScalar(DataInputStream input) throws IOException
+    {
+        try
+        {
+            return decode(input);
+        }
+        catch (ClassNotFoundException x)
+        {
+            // Scalars are never encoded with Java serialization
+            throw new IOException("Invalid scalar: " + x);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+
+/**
+ * An {@link ObjectInputStream} that resolves classes using the thread context class loader,
+ * so that session attributes whose classes belong to a web application can be deserialized.
+ */
+public class ClassLoadingObjectInputStream extends ObjectInputStream
+{
+    public ClassLoadingObjectInputStream(InputStream in) throws IOException
+    {
+        super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass descriptor) throws IOException, ClassNotFoundException
+    {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) return super.resolveClass(descriptor);
+        try
+        {
+            return Class.forName(descriptor.getName(), false, loader);
+        }
+        catch (ClassNotFoundException x)
+        {
+            return super.resolveClass(descriptor);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+/**
+ * A counting Bloom filter of strings, that supports removals.
+ * <br />
+ * The filter is sized for an expected number of elements and a target false positive rate; each counter
+ * takes one byte, and counters that reach the maximum value are never decremented, so that removals
+ * never cause false negatives.
+ * <br />
+ * This class is thread safe.
+ */
+public class CountingBloomFilter
+{
+    private static final int MAX_COUNT = 0xFF;
+
+    private final byte[] _counters;
+    private final int _hashes;
+    private int _size;
+
+    /**
+     * @param capacity the expected number of elements
+     * @param falsePositiveRate the target false positive rate, when the filter holds the expected number of elements
+     */
+    public CountingBloomFilter(int capacity, double falsePositiveRate)
+    {
+        if (capacity <= 0) throw new IllegalArgumentException("Invalid capacity " + capacity);
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) throw new IllegalArgumentException("Invalid false positive rate " + falsePositiveRate);
+        double ln2 = Math.log(2);
+        long counters = (long)Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+        if (counters > Integer.MAX_VALUE) throw new IllegalArgumentException("Filter too large: " + counters + " counters");
+        _counters = new byte[(int)Math.max(counters, 1)];
+        _hashes = (int)Math.max(1, Math.round((double)_counters.length / capacity * ln2));
+    }
+
+    public synchronized void add(String element)
+    {
+        int h1 = element.hashCode();
+        int h2 = secondHash(element);
+        for (int i = 0; i < _hashes; ++i)
+        {
+            int index = index(h1, h2, i);
+            int count = _counters[index] & 0xFF;
+            if (count < MAX_COUNT) _counters[index] = (byte)(count + 1);
+        }
+        ++_size;
+    }
+
+    /**
+     * Removes the given element, that must have been added before.
+     *
+     * @param element the element to remove
+     */
+    public synchronized void remove(String element)
+    {
+        int h1 = element.hashCode();
+        int h2 = secondHash(element);
+        for (int i = 0; i < _hashes; ++i)
+        {
+            int index = index(h1, h2, i);
+            int count = _counters[index] & 0xFF;
+            // Saturated counters may count more elements than their value, never decrement them
+            if (count > 0 && count < MAX_COUNT) _counters[index] = (byte)(count - 1);
+        }
+        if (_size > 0) --_size;
+    }
+
+    /**
+     * @param element the element to look up
+     * @return false if the element has definitely not been added, true if it may have been added
+     */
+    public synchronized boolean mightContain(String element)
+    {
+        int h1 = element.hashCode();
+        int h2 = secondHash(element);
+        for (int i = 0; i < _hashes; ++i)
+        {
+            if (_counters[index(h1, h2, i)] == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of elements added and not removed
+     */
+    public synchronized int getSize()
+    {
+        return _size;
+    }
+
+    /**
+     * @return the memory used by the counters, in bytes
+     */
+    public int getFootprint()
+    {
+        return _counters.length;
+    }
+
+    public int getHashes()
+    {
+        return _hashes;
+    }
+
+    private int index(int h1, int h2, int i)
+    {
+        return ((h1 + i * h2) & 0x7FFFFFFF) % _counters.length;
+    }
+
+    /**
+     * @param element the element to hash
+     * @return the FNV-1a hash of the element, independent of its hash code
+     */
+    private static int secondHash(String element)
+    {
+        int result = 0x811C9DC5;
+        for (int i = 0; i < element.length(); ++i)
+        {
+            result ^= element.charAt(i);
+            result *= 0x01000193;
+        }
+        // Odd, so that the probe sequence does not collapse
+        return result | 1;
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[" + getSize() + " elements, " + getFootprint() + " bytes, " + getHashes() + " hashes]";
+    }
+}
@@ -0,0 +1,119 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@link PassivationStore} that stores each passivated session in its own file.
+ */
+public class FilePassivationStore implements PassivationStore
+{
+    private static final String SUFFIX = ".session";
+
+    private final File _directory;
+
+    public FilePassivationStore(String directory)
+    {
+        this(new File(directory));
+    }
+
+    public FilePassivationStore(File directory)
+    {
+        _directory = directory;
+    }
+
+    public File getDirectory()
+    {
+        return _directory;
+    }
+
+    public void store(String key, byte[] data) throws IOException
+    {
+        if (!_directory.isDirectory() && !_directory.mkdirs() && !_directory.isDirectory())
+            throw new IOException("Could not create directory " + _directory);
+
+        // Write to a temporary file first, so that a partially written session is never loaded
+        File file = fileFor(key);
+        File temp = new File(_directory, file.getName() + ".tmp");
+        OutputStream output = new FileOutputStream(temp);
+        try
+        {
+            output.write(data);
+        }
+        finally
+        {
+            output.close();
+        }
+        if (file.exists() && !file.delete()) throw new IOException("Could not replace " + file);
+        if (!temp.renameTo(file)) throw new IOException("Could not rename " + temp + " to " + file);
+    }
+
+    public byte[] load(String key) throws IOException
+    {
+        File file = fileFor(key);
+        if (!file.exists()) return null;
+
+        byte[] result = new byte[(int)file.length()];
+        InputStream input = new FileInputStream(file);
+        try
+        {
+            int offset = 0;
+            while (offset < result.length)
+            {
+                int read = input.read(result, offset, result.length - offset);
+                if (read < 0) throw new IOException("Unexpected end of file " + file);
+                offset += read;
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+        return result;
+    }
+
+    public void remove(String key) throws IOException
+    {
+        File file = fileFor(key);
+        if (file.exists() && !file.delete()) throw new IOException("Could not delete " + file);
+    }
+
+    private File fileFor(String key)
+    {
+        // Escape the characters that may not be valid in file names
+        StringBuilder name = new StringBuilder(key.length() + SUFFIX.length());
+        for (int i = 0; i < key.length(); ++i)
+        {
+            char c = key.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '.')
+                name.append(c);
+            else
+                name.append('%').append(Integer.toHexString(c | 0x10000).substring(1));
+        }
+        return new File(_directory, name.append(SUFFIX).toString());
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[" + _directory + "]";
+    }
+}
@@ -0,0 +1,29 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+/**
+ * A marker interface for session attribute values that are kept only in the node-local session,
+ * and are never replicated to the cluster, such as caches, open handles or memoized data.
+ * <br />
+ * Node-local attributes are lost when the node drops the session from its local cache, for example
+ * when the session is evicted, passivated or modified on another node, so the application must be
+ * able to recreate them.
+ *
+ * @see TerracottaSessionManager#setNodeLocalAttributePrefix(String)
+ */
+public interface NodeLocalAttribute
+{
+}
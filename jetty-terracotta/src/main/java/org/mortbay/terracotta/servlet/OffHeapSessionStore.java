@@ -0,0 +1,396 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A node-local store of serialized sessions kept outside of the Java heap.
+ * <br />
+ * Memory is allocated in slabs of direct {@link ByteBuffer}s, and each slab is carved in chunks of
+ * the same size; chunk sizes are powers of two, so that each serialized session is stored in the
+ * smallest chunk that can hold it. A slab whose chunks are all free goes back to a shared pool, where
+ * it can be carved again for any chunk size. When there is no free chunk of the needed size and the
+ * capacity has been reached, the least recently used entry of the same size is evicted; if there is
+ * none, the least recently used entries of other sizes are evicted until a slab is free.
+ * <br />
+ * Each entry records the version and the expiration time of the session data it was created from,
+ * so that stale entries can be detected when they are looked up.
+ * <br />
+ * This class is thread safe.
+ *
+ * @see TerracottaSessionManager#setOffHeapCapacity(long)
+ */
+public class OffHeapSessionStore
+{
+    private static final int MIN_CHUNK_SIZE = 64;
+
+    private final int _slabSize;
+    private final int _maxSlabs;
+    private final List<Slab> _slabs = new ArrayList<Slab>();
+    private final List<Slab> _freeSlabs = new ArrayList<Slab>();
+    private final SizeClass[] _sizeClasses;
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long _usedBytes;
+    private long _hits;
+    private long _misses;
+    private long _evictions;
+
+    /**
+     * @param capacity the maximum number of bytes to allocate outside of the heap
+     * @param slabSize the size in bytes of each slab, which is also the maximum size of an entry
+     */
+    public OffHeapSessionStore(long capacity, int slabSize)
+    {
+        if (slabSize < MIN_CHUNK_SIZE) throw new IllegalArgumentException("Slab size must be at least " + MIN_CHUNK_SIZE);
+        _slabSize = slabSize;
+        _maxSlabs = (int)Math.max(1, capacity / slabSize);
+        List<SizeClass> sizeClasses = new ArrayList<SizeClass>();
+        for (int chunkSize = MIN_CHUNK_SIZE; chunkSize <= slabSize && chunkSize > 0; chunkSize <<= 1)
+            sizeClasses.add(new SizeClass(chunkSize));
+        _sizeClasses = sizeClasses.toArray(new SizeClass[sizeClasses.size()]);
+    }
+
+    /**
+     * Stores the given serialized session, replacing any previous entry with the same id.
+     *
+     * @param clusterId the session id
+     * @param version the version of the session data that has been serialized
+     * @param expiration the expiration time of the session data that has been serialized
+     * @param data the serialized session
+     * @return whether the entry has been stored
+     */
+    public synchronized boolean put(String clusterId, long version, long expiration, byte[] data)
+    {
+        remove(clusterId);
+
+        SizeClass sizeClass = sizeClassFor(data.length);
+        if (sizeClass == null) return false;
+
+        long chunk = allocate(sizeClass);
+        if (chunk < 0) return false;
+
+        Entry entry = new Entry(sizeClass, chunk, data.length, version, expiration);
+        ByteBuffer buffer = _slabs.get(entry.slab())._buffer.duplicate();
+        buffer.position(entry.offset());
+        buffer.put(data);
+        _entries.put(clusterId, entry);
+        _usedBytes += data.length;
+        return true;
+    }
+
+    /**
+     * Returns the serialized session with the given id, if its version matches the given version.
+     * Entries with a different version are stale, and are removed.
+     *
+     * @param clusterId the session id
+     * @param version the current version of the session data
+     * @return the serialized session, or null if there is no entry or the entry is stale
+     */
+    public synchronized byte[] get(String clusterId, long version)
+    {
+        Entry entry = _entries.get(clusterId);
+        if (entry == null || entry._version != version)
+        {
+            if (entry != null) remove(clusterId);
+            ++_misses;
+            return null;
+        }
+        ++_hits;
+        byte[] result = new byte[entry._length];
+        ByteBuffer buffer = _slabs.get(entry.slab())._buffer.duplicate();
+        buffer.position(entry.offset());
+        buffer.get(result);
+        return result;
+    }
+
+    public synchronized boolean remove(String clusterId)
+    {
+        Entry entry = _entries.remove(clusterId);
+        if (entry == null) return false;
+        release(entry);
+        return true;
+    }
+
+    /**
+     * Removes the entries that were expired at the time they have been stored.
+     * The session may have been accessed in the meantime on other nodes, but in that case
+     * it is likely that its data has changed, and anyway it will be fetched again.
+     *
+     * @param now the current time
+     * @return the number of entries removed
+     */
+    public synchronized int purge(long now)
+    {
+        int result = 0;
+        for (Iterator<Entry> entries = _entries.values().iterator(); entries.hasNext();)
+        {
+            Entry entry = entries.next();
+            if (entry._expiration > 0 && entry._expiration < now)
+            {
+                entries.remove();
+                release(entry);
+                ++result;
+            }
+        }
+        return result;
+    }
+
+    public synchronized void clear()
+    {
+        _entries.clear();
+        _slabs.clear();
+        _freeSlabs.clear();
+        for (SizeClass sizeClass : _sizeClasses)
+            sizeClass._free = 0;
+        _usedBytes = 0;
+    }
+
+    private SizeClass sizeClassFor(int length)
+    {
+        for (SizeClass sizeClass : _sizeClasses)
+        {
+            if (sizeClass._chunkSize >= length) return sizeClass;
+        }
+        return null;
+    }
+
+    private long allocate(SizeClass sizeClass)
+    {
+        if (sizeClass._free == 0 && _freeSlabs.isEmpty() && _slabs.size() < _maxSlabs)
+        {
+            Slab slab = new Slab(_slabs.size(), ByteBuffer.allocateDirect(_slabSize));
+            _slabs.add(slab);
+            _freeSlabs.add(slab);
+        }
+
+        if (sizeClass._free == 0 && _freeSlabs.isEmpty())
+        {
+            // Full, evict the least recently used entry with the same chunk size
+            if (!evict(sizeClass))
+            {
+                // No entry with the same chunk size, evict the least recently
+                // used entries of other chunk sizes until a slab is free
+                while (_freeSlabs.isEmpty() && evict(null))
+                    ;
+            }
+        }
+
+        if (sizeClass._free == 0 && !_freeSlabs.isEmpty())
+        {
+            Slab slab = _freeSlabs.remove(_freeSlabs.size() - 1);
+            for (int offset = _slabSize - sizeClass._chunkSize; offset >= 0; offset -= sizeClass._chunkSize)
+                sizeClass.push(((long)slab._index << 32) | offset);
+        }
+
+        if (sizeClass._free == 0) return -1;
+        long result = sizeClass.pop();
+        ++_slabs.get((int)(result >>> 32))._used;
+        return result;
+    }
+
+    /**
+     * Evicts the least recently used entry with the given chunk size.
+     *
+     * @param sizeClass the chunk size of the entry to evict, or null for any chunk size
+     * @return whether an entry has been evicted
+     */
+    private boolean evict(SizeClass sizeClass)
+    {
+        for (Iterator<Entry> entries = _entries.values().iterator(); entries.hasNext();)
+        {
+            Entry entry = entries.next();
+            if (sizeClass == null || entry._sizeClass == sizeClass)
+            {
+                entries.remove();
+                release(entry);
+                ++_evictions;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void release(Entry entry)
+    {
+        SizeClass sizeClass = entry._sizeClass;
+        sizeClass.push(entry._chunk);
+        _usedBytes -= entry._length;
+
+        Slab slab = _slabs.get(entry.slab());
+        if (--slab._used == 0)
+        {
+            // All the chunks of the slab are free, give it back to the pool
+            sizeClass.removeSlab(slab._index);
+            _freeSlabs.add(slab);
+        }
+    }
+
+    /**
+     * @return the maximum number of bytes that can be allocated
+     */
+    public long getCapacity()
+    {
+        return (long)_maxSlabs * _slabSize;
+    }
+
+    /**
+     * @return the number of bytes allocated so far
+     */
+    public synchronized long getAllocatedBytes()
+    {
+        return (long)_slabs.size() * _slabSize;
+    }
+
+    /**
+     * @return the number of bytes occupied by serialized sessions
+     */
+    public synchronized long getUsedBytes()
+    {
+        return _usedBytes;
+    }
+
+    /**
+     * @return the ratio between the bytes occupied by serialized sessions and the capacity
+     */
+    public double getOccupancy()
+    {
+        return (double)getUsedBytes() / getCapacity();
+    }
+
+    public synchronized int getSize()
+    {
+        return _entries.size();
+    }
+
+    public synchronized long getHits()
+    {
+        return _hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return _misses;
+    }
+
+    public synchronized double getHitRatio()
+    {
+        long lookups = _hits + _misses;
+        return lookups == 0 ? 0D : (double)_hits / lookups;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return _evictions;
+    }
+
+    /**
+     * For testing and debugging purposes only.
+     * @return the ids of the sessions in this store, from the least to the most recently used
+     */
+    protected synchronized List<String> getIds()
+    {
+        return new ArrayList<String>(_entries.keySet());
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[" + getSize() + " sessions, " + getUsedBytes() + "/" + getCapacity() + " bytes]";
+    }
+
+    private static class SizeClass
+    {
+        private final int _chunkSize;
+        private long[] _chunks = new long[16];
+        private int _free;
+
+        private SizeClass(int chunkSize)
+        {
+            _chunkSize = chunkSize;
+        }
+
+        private void push(long chunk)
+        {
+            if (_free == _chunks.length)
+            {
+                long[] chunks = new long[_chunks.length << 1];
+                System.arraycopy(_chunks, 0, chunks, 0, _free);
+                _chunks = chunks;
+            }
+            _chunks[_free++] = chunk;
+        }
+
+        private long pop()
+        {
+            return _chunks[--_free];
+        }
+
+        private void removeSlab(int slab)
+        {
+            int free = 0;
+            for (int i = 0; i < _free; ++i)
+            {
+                if ((int)(_chunks[i] >>> 32) != slab) _chunks[free++] = _chunks[i];
+            }
+            _free = free;
+        }
+    }
+
+    private static class Slab
+    {
+        private final int _index;
+        private final ByteBuffer _buffer;
+        private int _used;
+
+        private Slab(int index, ByteBuffer buffer)
+        {
+            _index = index;
+            _buffer = buffer;
+        }
+    }
+
+    private static class Entry
+    {
+        private final SizeClass _sizeClass;
+        private final long _chunk;
+        private final int _length;
+        private final long _version;
+        private final long _expiration;
+
+        private Entry(SizeClass sizeClass, long chunk, int length, long version, long expiration)
+        {
+            _sizeClass = sizeClass;
+            _chunk = chunk;
+            _length = length;
+            _version = version;
+            _expiration = expiration;
+        }
+
+        private int slab()
+        {
+            return (int)(_chunk >>> 32);
+        }
+
+        private int offset()
+        {
+            return (int)_chunk;
+        }
+    }
+}
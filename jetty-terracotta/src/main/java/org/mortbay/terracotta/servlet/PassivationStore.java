@@ -0,0 +1,51 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+
+/**
+ * A store for sessions that have been passivated out of the distributed shared session data map.
+ * <br />
+ * Passivated sessions can be activated by any node of the cluster, so the store must be accessible
+ * by all nodes (for example a directory on a shared file system), unless requests are always routed
+ * to the same node for the same session.
+ * Calls for the same key are always performed while holding the Terracotta lock of the session.
+ *
+ * @see TerracottaSessionManager#setPassivationStore(PassivationStore)
+ * @see FilePassivationStore
+ */
+public interface PassivationStore
+{
+    /**
+     * @param key the key of the passivated session
+     * @param data the serialized session
+     * @throws IOException if the session cannot be stored
+     */
+    public void store(String key, byte[] data) throws IOException;
+
+    /**
+     * @param key the key of the passivated session
+     * @return the serialized session, or null if there is no session with the given key
+     * @throws IOException if the session cannot be loaded
+     */
+    public byte[] load(String key) throws IOException;
+
+    /**
+     * @param key the key of the passivated session
+     * @throws IOException if the session cannot be removed
+     */
+    public void remove(String key) throws IOException;
+}
@@ -0,0 +1,226 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact snapshot of serialized sessions, stored in a memory-mapped file.
+ * <br />
+ * The snapshot is written when a node stops, and mapped back when the node restarts, so that the
+ * sessions that were hot before the restart can be restored from local memory instead of being
+ * fetched again from the Terracotta server. Entries record the session data version and expiration
+ * time, so that the caller can validate them against the current session data.
+ * <br />
+ * The file layout is: a header with a magic number, the snapshot key and the number of entries,
+ * followed by the entries, each made of the session id, the version, the expiration time and the
+ * serialized session.
+ *
+ * @see TerracottaSessionManager#setSnapshotFile(String)
+ */
+public class SessionSnapshot
+{
+    private static final int MAGIC = 0x54435353;
+    private static final String ENCODING = "UTF-8";
+
+    private final ByteBuffer _buffer;
+    private final Map<String, Entry> _entries;
+
+    private SessionSnapshot(ByteBuffer buffer, Map<String, Entry> entries)
+    {
+        _buffer = buffer;
+        _entries = entries;
+    }
+
+    /**
+     * Writes the given entries to the given file, replacing it atomically.
+     *
+     * @param file the snapshot file
+     * @param key the key identifying the owner of the snapshot
+     * @param entries the entries to write
+     * @throws IOException if the snapshot cannot be written
+     */
+    public static void write(File file, String key, Collection<Entry> entries) throws IOException
+    {
+        byte[] keyBytes = key.getBytes(ENCODING);
+        long size = 4 + 2 + keyBytes.length + 4;
+        for (Entry entry : entries)
+            size += 2 + entry._id.getBytes(ENCODING).length + 8 + 8 + 4 + entry._data.length;
+
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile output = new RandomAccessFile(temp, "rw");
+        try
+        {
+            output.setLength(size);
+            MappedByteBuffer buffer = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC);
+            putBytes(buffer, keyBytes);
+            buffer.putInt(entries.size());
+            for (Entry entry : entries)
+            {
+                putBytes(buffer, entry._id.getBytes(ENCODING));
+                buffer.putLong(entry._version);
+                buffer.putLong(entry._expiration);
+                buffer.putInt(entry._data.length);
+                buffer.put(entry._data);
+            }
+            buffer.force();
+        }
+        finally
+        {
+            output.close();
+        }
+
+        if (file.exists() && !file.delete()) throw new IOException("Could not replace " + file);
+        if (!temp.renameTo(file)) throw new IOException("Could not rename " + temp + " to " + file);
+    }
+
+    /**
+     * Maps the given snapshot file in memory.
+     *
+     * @param file the snapshot file
+     * @param key the key identifying the owner of the snapshot
+     * @return the snapshot, or null if the file does not exist or belongs to another owner
+     * @throws IOException if the snapshot cannot be read
+     */
+    public static SessionSnapshot read(File file, String key) throws IOException
+    {
+        if (!file.exists()) return null;
+
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try
+        {
+            // The mapping stays valid after the file is closed
+            MappedByteBuffer buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+            if (buffer.remaining() < 4 || buffer.getInt() != MAGIC) return null;
+            if (!key.equals(new String(getBytes(buffer), ENCODING))) return null;
+
+            int count = buffer.getInt();
+            Map<String, Entry> entries = new HashMap<String, Entry>(count);
+            for (int i = 0; i < count; ++i)
+            {
+                String id = new String(getBytes(buffer), ENCODING);
+                long version = buffer.getLong();
+                long expiration = buffer.getLong();
+                int length = buffer.getInt();
+                entries.put(id, new Entry(id, version, expiration, buffer.position(), length));
+                buffer.position(buffer.position() + length);
+            }
+            return new SessionSnapshot(buffer, entries);
+        }
+        catch (RuntimeException x)
+        {
+            // Truncated or corrupted file
+            throw new IOException("Invalid session snapshot " + file + ": " + x);
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    /**
+     * Returns and removes the serialized session with the given id, if its version matches the given version.
+     *
+     * @param clusterId the session id
+     * @param version the current version of the session data
+     * @return the serialized session, or null if there is no entry or the entry is stale
+     */
+    public synchronized byte[] take(String clusterId, long version)
+    {
+        Entry entry = _entries.remove(clusterId);
+        if (entry == null || entry._version != version) return null;
+
+        byte[] result = new byte[entry._length];
+        ByteBuffer buffer = _buffer.duplicate();
+        buffer.position(entry._offset);
+        buffer.get(result);
+        return result;
+    }
+
+    /**
+     * @return the number of entries not yet taken
+     */
+    public synchronized int getSize()
+    {
+        return _entries.size();
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes)
+    {
+        buffer.putShort((short)bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer)
+    {
+        byte[] result = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(result);
+        return result;
+    }
+
+    public static class Entry
+    {
+        private final String _id;
+        private final long _version;
+        private final long _expiration;
+        private final byte[] _data;
+        private final int _offset;
+        private final int _length;
+
+        public Entry(String clusterId, long version, long expiration, byte[] data)
+        {
+            this(clusterId, version, expiration, data, -1, data.length);
+        }
+
+        private Entry(String clusterId, long version, long expiration, int offset, int length)
+        {
+            this(clusterId, version, expiration, null, offset, length);
+        }
+
+        private Entry(String clusterId, long version, long expiration, byte[] data, int offset, int length)
+        {
+            _id = clusterId;
+            _version = version;
+            _expiration = expiration;
+            _data = data;
+            _offset = offset;
+            _length = length;
+        }
+
+        public String getId()
+        {
+            return _id;
+        }
+
+        public long getVersion()
+        {
+            return _version;
+        }
+
+        public long getExpirationTime()
+        {
+            return _expiration;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ * A map partitioned over a fixed number of {@link Hashtable} shards, so that operations on different
+ * keys contend on different monitors.
+ * <br />
+ * The shard of a key is chosen by its hash code, that must be the same on all cluster nodes,
+ * as it is for strings; all nodes must use the same number of shards.
+ *
+ * @see TerracottaSessionManager#setShards(int)
+ */
+public class ShardedMap<K, V>
+{
+    private final Hashtable<K, V>[] _shards;
+
+    /**
+     * @param shards the shards, possibly shared Terracotta roots
+     */
+    public ShardedMap(Hashtable<K, V>[] shards)
+    {
+        if (shards.length == 0) throw new IllegalArgumentException("At least one shard is required");
+        _shards = shards;
+    }
+
+    /**
+     * @param key the key
+     * @return the shard holding the given key
+     */
+    protected Hashtable<K, V> shardFor(Object key)
+    {
+        if (_shards.length == 1) return _shards[0];
+        return _shards[(key.hashCode() & 0x7FFFFFFF) % _shards.length];
+    }
+
+    public V get(Object key)
+    {
+        return shardFor(key).get(key);
+    }
+
+    public boolean containsKey(Object key)
+    {
+        return shardFor(key).containsKey(key);
+    }
+
+    public V put(K key, V value)
+    {
+        return shardFor(key).put(key, value);
+    }
+
+    public V remove(Object key)
+    {
+        return shardFor(key).remove(key);
+    }
+
+    public int size()
+    {
+        int result = 0;
+        for (Hashtable<K, V> shard : _shards)
+            result += shard.size();
+        return result;
+    }
+
+    public int getShards()
+    {
+        return _shards.length;
+    }
+
+    /**
+     * Copies the entries of each shard while holding its monitor; the result is consistent
+     * for each shard, but not across shards.
+     *
+     * @return a copy of the entries of this map
+     */
+    public Map<K, V> snapshot()
+    {
+        Map<K, V> result = new HashMap<K, V>();
+        for (Hashtable<K, V> shard : _shards)
+        {
+            synchronized (shard)
+            {
+                // Do not use iterators that throw ConcurrentModificationException
+                Enumeration<K> keys = shard.keys();
+                while (keys.hasMoreElements())
+                {
+                    K key = keys.nextElement();
+                    V value = shard.get(key);
+                    if (value != null) result.put(key, value);
+                }
+            }
+        }
+        return result;
+    }
+}
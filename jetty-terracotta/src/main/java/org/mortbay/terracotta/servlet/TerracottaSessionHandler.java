@@ -63,6 +63,7 @@ public class TerracottaSessionHandler extends SessionHandler
         HttpSession old_session=null;
         TerracottaSessionManager sessionManager = (TerracottaSessionManager)getSessionManager();
         Request currentRequest = (request instanceof Request) ? (Request)request : HttpConnection.getCurrentConnection().getRequest();
+        boolean suspended = false;
         try
         {
             old_session_manager = baseRequest.getSessionManager();
@@ -74,9 +75,13 @@ public class TerracottaSessionHandler extends SessionHandler
                 baseRequest.setSessionManager(sessionManager);
                 baseRequest.setSession(null);
             }
-            // Tell the session manager that the request is entering
-            if (sessionManager != null) 
+            // Tell the session manager that the request is entering; start to fetch
+            // the session data while the session lock is being acquired
+            if (sessionManager != null)
+            {
+                sessionManager.prefetch(currentRequest);
                 sessionManager.enter(currentRequest);
+            }
             
             // access any existing session
             HttpSession session=null;
@@ -106,6 +111,13 @@ public class TerracottaSessionHandler extends SessionHandler
                 Log.debug("session="+session);
             }
 
+            // Requests to unlocked paths do not hold the session lock while they are handled
+            if (sessionManager != null && sessionManager.isUnlockedPath(target))
+            {
+                sessionManager.suspend(currentRequest);
+                suspended = true;
+            }
+
             // start manual inline of nextScope(target,baseRequest,request,response);
             //noinspection ConstantIfStatement
             if (false)
@@ -121,22 +133,29 @@ public class TerracottaSessionHandler extends SessionHandler
         }
         finally
         {
-            HttpSession session=request.getSession(false);
             if (sessionManager != null)
             {
+                if (suspended)
+                    sessionManager.resume(currentRequest);
+
+                // Leaving context, free up the session while the session lock is still held.
+                // Nested dispatches to the same context leave this to the outermost one,
+                // so that the session is completed exactly once per request.
                 // User may have invalidated the session, must get it again
                 HttpSession currentSession = currentRequest.getSession(false);
-                if (currentSession != null) 
-                    sessionManager.complete(currentSession);
-
-                sessionManager.exit(currentRequest);
+                try
+                {
+                    if (currentSession != null && old_session_manager != sessionManager)
+                        sessionManager.complete(currentSession);
+                }
+                finally
+                {
+                    sessionManager.exit(currentRequest);
+                }
             }
             
             if (old_session_manager != sessionManager)
             {
-                //leaving context, free up the session
-                if (session!=null)
-                    sessionManager.complete(session);
                 baseRequest.setSessionManager(old_session_manager);
                 baseRequest.setSession(old_session);
             }
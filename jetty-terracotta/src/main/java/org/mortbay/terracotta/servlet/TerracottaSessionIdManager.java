@@ -16,26 +16,56 @@ package org.mortbay.terracotta.servlet;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
+import com.tc.object.bytecode.Manageable;
+import com.tc.object.bytecode.ManagerUtil;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
-import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.SessionIdManager;
-import org.eclipse.jetty.server.SessionManager;
-import org.eclipse.jetty.server.session.AbstractSessionManager;
 import org.eclipse.jetty.server.session.AbstractSessionManager.Session;
-import org.eclipse.jetty.webapp.WebAppContext;
 import org.eclipse.jetty.util.log.Log;
 
 /**
  * A specialized SessionIdManager to be used with <a href="http://www.terracotta.org">Terracotta</a>.
  * See the {@link TerracottaSessionManager} javadocs for implementation notes.
+ * <br />
+ * Session ids are unique by construction, so that generating them does not require lookups in the
+ * distributed shared session ids set: each id is made of a node number, unique in the cluster and
+ * obtained from a distributed shared counter when this session id manager starts, a local counter,
+ * and random bits that make the id hard to guess.
+ * <br />
+ * Each node keeps a {@link CountingBloomFilter} of the session ids it has created, updated when sessions
+ * are added and removed, so that looking up one of those ids that is definitely not in use does not
+ * require to access the distributed shared session ids set. Sessions created on other nodes are never
+ * added to the filter, so ids with the prefix of another node are always looked up in the shared set;
+ * sessions created by this node and removed on other nodes stay in the filter, which only causes false
+ * positives, and the filter is rebuilt from the shared set when it has seen more ids than its capacity.
+ * The rebuild is done by the scavengers of the session managers, so that requests never iterate the shared set,
+ * and the full filter is used until it is replaced, with a higher false positive rate.
+ * The rebuilt filter has at least twice the capacity of the ids still alive, doubling the capacity if needed,
+ * so that rebuilds become rarer as the number of sessions grows, and their cost is amortized over the adds.
+ * <br />
+ * The random bits are drawn from a generator per thread, so that threads creating sessions concurrently
+ * do not contend on a single synchronized generator. Each per-thread generator is an instance of the
+ * same algorithm as the node generator, seeded with bytes drawn from the node generator, which is only
+ * used when a thread creates its first session id.
+ * <br />
+ * Session managers register with this session id manager when they start, so that invalidating all
+ * the sessions with the same id only involves the registered managers whose distributed shared session
+ * data contains the id, without acquiring the session lock of the contexts that do not have the session.
  *
  * @see TerracottaSessionManager
  */
@@ -45,31 +75,150 @@ public class TerracottaSessionIdManager extends AbstractLifeCycle implements Ses
     private final static String SESSION_ID_RANDOM_ALGORITHM = "SHA1PRNG";
     private final static String SESSION_ID_RANDOM_ALGORITHM_ALT = "IBMSecureRandom";
     private static final Object PRESENT = new Object();
+    private static final String NODE_COUNTER_ROOT = "sessionIdNodes";
+    private static final int RANDOM_LENGTH = 13;
 
-    private final Server _server;
     private String _workerName;
     private Random _random;
     private boolean _weakRandom;
+    private String _randomAlgorithm;
+    private final ThreadLocal<Random> _randoms = new ThreadLocal<Random>()
+    {
+        @Override
+        protected Random initialValue()
+        {
+            return newThreadRandom();
+        }
+    };
     private Map<String, Object> _sessionIds;
+    private String _nodePrefix;
+    private final AtomicLong _counter = new AtomicLong();
+    private int _idFilterCapacity = 100000;
+    private double _idFilterFalsePositiveRate = 0.01D;
+    private final Object _idFilterLock = new Object();
+    private CountingBloomFilter _idFilter;
+    private int _idFilterSize;
+    private int _idFilterAdds;
+    /**
+     * The ids created by this node added to (true) or removed from (false) the shared set while the
+     * session id filter is rebuilt, or null if it is not being rebuilt.
+     */
+    private Map<String, Boolean> _idFilterChanges;
+    private final AtomicLong _idFilterNegatives = new AtomicLong();
+    private final List<TerracottaSessionManager> _sessionManagers = new CopyOnWriteArrayList<TerracottaSessionManager>();
 
+    public TerracottaSessionIdManager()
+    {
+    }
+
+    /**
+     * @param server ignored, session managers register with this session id manager when they start
+     * @deprecated use {@link #TerracottaSessionIdManager()}
+     */
+    @Deprecated
     public TerracottaSessionIdManager(Server server)
     {
-        _server = server;
+        this();
     }
 
     public void doStart()
+    {
+        initRandom();
+        _sessionIds = newSessionIdsSet();
+        _nodePrefix = Long.toString(nextNodeNumber(), 36) + "_";
+        Log.debug("Session id node prefix {}", _nodePrefix);
+        // The node prefix is new, so no session id known to the cluster has been created by this node yet
+        synchronized (_idFilterLock)
+        {
+            _idFilterSize = _idFilterCapacity;
+            _idFilter = newIdFilter();
+            _idFilterAdds = 0;
+        }
+        if (_idFilter != null) Log.debug("Session id filter {}", _idFilter);
+    }
+
+    private CountingBloomFilter newIdFilter()
+    {
+        return _idFilterSize > 0 ? new CountingBloomFilter(_idFilterSize, _idFilterFalsePositiveRate) : null;
+    }
+
+    /**
+     * Replaces the session id filter, if it has seen more ids than its capacity, with one that contains only
+     * the ids created by this node that are still in the distributed shared session ids set, growing its
+     * capacity so that at least half of it is available for new ids.
+     * <br />
+     * Called periodically by the scavengers of the session managers. The shared set is iterated and the new
+     * filter is built without holding the filter lock; the ids added and removed meanwhile are applied to
+     * the new filter when it replaces the current one.
+     */
+    void rebuildIdFilter()
+    {
+        int size;
+        synchronized (_idFilterLock)
+        {
+            if (_idFilter == null || _idFilterChanges != null || _idFilterAdds <= _idFilterSize) return;
+            _idFilterChanges = new HashMap<String, Boolean>();
+            size = _idFilterSize;
+        }
+        try
+        {
+            Set<String> clusterIds = new HashSet<String>();
+            for (Object clusterId : ((Hashtable)_sessionIds).keySet().toArray())
+            {
+                if (((String)clusterId).startsWith(_nodePrefix)) clusterIds.add((String)clusterId);
+            }
+            while (clusterIds.size() > size / 2 && size < Integer.MAX_VALUE / 2)
+                size *= 2;
+            CountingBloomFilter filter = new CountingBloomFilter(size, _idFilterFalsePositiveRate);
+            for (String clusterId : clusterIds)
+                filter.add(clusterId);
+
+            synchronized (_idFilterLock)
+            {
+                // Stopped meanwhile
+                if (_idFilter == null) return;
+                for (Map.Entry<String, Boolean> change : _idFilterChanges.entrySet())
+                {
+                    String clusterId = change.getKey();
+                    if (change.getValue())
+                    {
+                        if (clusterIds.add(clusterId)) filter.add(clusterId);
+                    }
+                    else
+                    {
+                        if (clusterIds.remove(clusterId)) filter.remove(clusterId);
+                    }
+                }
+                _idFilter = filter;
+                _idFilterSize = size;
+                _idFilterAdds = clusterIds.size();
+            }
+            Log.debug("Rebuilt session id filter {}", filter);
+        }
+        finally
+        {
+            synchronized (_idFilterLock)
+            {
+                _idFilterChanges = null;
+            }
+        }
+    }
+
+    void initRandom()
     {
         if (_random == null)
         {
             try
             {
                 _random = SecureRandom.getInstance(SESSION_ID_RANDOM_ALGORITHM);
+                _randomAlgorithm = SESSION_ID_RANDOM_ALGORITHM;
             }
             catch (NoSuchAlgorithmException e)
             {
                 try
                 {
                     _random = SecureRandom.getInstance(SESSION_ID_RANDOM_ALGORITHM_ALT);
+                    _randomAlgorithm = SESSION_ID_RANDOM_ALGORITHM_ALT;
                     _weakRandom = false;
                 }
                 catch (NoSuchAlgorithmException e_alt)
@@ -81,7 +230,69 @@ public class TerracottaSessionIdManager extends AbstractLifeCycle implements Ses
             }
         }
         _random.setSeed(_random.nextLong() ^ System.currentTimeMillis() ^ hashCode() ^ Runtime.getRuntime().freeMemory());
-        _sessionIds = newSessionIdsSet();
+    }
+
+    /**
+     * @return a new generator for the current thread, seeded from the node generator
+     */
+    private Random newThreadRandom()
+    {
+        byte[] seed = new byte[20];
+        synchronized (_random)
+        {
+            _random.nextBytes(seed);
+        }
+
+        if (!_weakRandom)
+        {
+            try
+            {
+                // Seeding before the first use replaces the self-seeding of the generator
+                SecureRandom result = SecureRandom.getInstance(_randomAlgorithm);
+                result.setSeed(seed);
+                return result;
+            }
+            catch (NoSuchAlgorithmException x)
+            {
+                // Cannot happen, the node generator has been created with the same algorithm
+                throw new IllegalStateException(x);
+            }
+        }
+
+        long result = 0;
+        for (int i = 0; i < 8; ++i)
+            result = (result << 8) | (seed[i] & 0xFF);
+        return new Random(result ^ Thread.currentThread().getId());
+    }
+
+    /**
+     * @return random bits for a new session id, from the generator of the current thread
+     */
+    long nextRandom()
+    {
+        return _randoms.get().nextLong();
+    }
+
+    /**
+     * @return a number that is unique among all the nodes of the cluster, including the nodes that
+     * have been restarted
+     */
+    private long nextNodeNumber()
+    {
+        TerracottaSessionManager.Lock.lock(NODE_COUNTER_ROOT);
+        try
+        {
+            Hashtable<String, Long> counter = (Hashtable<String, Long>)ManagerUtil.lookupOrCreateRootNoDepth(NODE_COUNTER_ROOT, new Hashtable<String, Long>());
+            ((Manageable)counter).__tc_managed().disableAutoLocking();
+            Long result = counter.get(NODE_COUNTER_ROOT);
+            if (result == null) result = 0L;
+            counter.put(NODE_COUNTER_ROOT, result + 1);
+            return result;
+        }
+        finally
+        {
+            TerracottaSessionManager.Lock.unlock(NODE_COUNTER_ROOT);
+        }
     }
 
     private Map<String, Object> newSessionIdsSet()
@@ -94,14 +305,122 @@ public class TerracottaSessionIdManager extends AbstractLifeCycle implements Ses
 
     public void doStop()
     {
+        synchronized (_idFilterLock)
+        {
+            _idFilter = null;
+        }
+    }
+
+    /**
+     * @return the expected number of sessions created by this node, used to size the session id filter
+     * initially
+     */
+    public int getIdFilterCapacity()
+    {
+        return _idFilterCapacity;
+    }
+
+    /**
+     * Sets the expected number of sessions created by this node, that together with the false positive
+     * rate determines the memory footprint of the session id filter, about 1.44 * log2(1 / rate) bytes
+     * per session. The filter grows when more sessions created by this node are alive.
+     *
+     * @param idFilterCapacity the expected number of sessions, or 0 to disable the session id filter
+     */
+    public void setIdFilterCapacity(int idFilterCapacity)
+    {
+        if (isStarted()) throw new IllegalStateException("Cannot change the session id filter capacity while started");
+        _idFilterCapacity = idFilterCapacity;
+    }
+
+    public double getIdFilterFalsePositiveRate()
+    {
+        return _idFilterFalsePositiveRate;
+    }
+
+    /**
+     * @param idFilterFalsePositiveRate the target false positive rate of the session id filter, between 0 and 1
+     */
+    public void setIdFilterFalsePositiveRate(double idFilterFalsePositiveRate)
+    {
+        if (isStarted()) throw new IllegalStateException("Cannot change the session id filter false positive rate while started");
+        _idFilterFalsePositiveRate = idFilterFalsePositiveRate;
+    }
+
+    /**
+     * @return the memory used by the session id filter, in bytes
+     */
+    public int getIdFilterFootprint()
+    {
+        synchronized (_idFilterLock)
+        {
+            return _idFilter == null ? 0 : _idFilter.getFootprint();
+        }
+    }
+
+    /**
+     * @return the number of session id lookups answered by the session id filter without accessing
+     * the distributed shared session ids set
+     */
+    public long getIdFilterNegatives()
+    {
+        return _idFilterNegatives.get();
     }
 
     public void addSession(HttpSession session)
     {
+        // Local sessions are added when they are materialized
+        if (!((TerracottaSessionManager.Session)session).isMaterialized()) return;
         String clusterId = ((TerracottaSessionManager.Session)session).getClusterId();
         // Use a unique constant object, because Strings are "copied" by Terracotta,
         // causing unnecessary traffic to the Terracotta server.
         _sessionIds.put(clusterId, PRESENT);
+        // Add to the filter after the shared set, so that a concurrent rebuild cannot miss the id
+        if (clusterId.startsWith(_nodePrefix))
+        {
+            synchronized (_idFilterLock)
+            {
+                if (_idFilter != null)
+                {
+                    _idFilter.add(clusterId);
+                    ++_idFilterAdds;
+                    if (_idFilterChanges != null) _idFilterChanges.put(clusterId, Boolean.TRUE);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the name of this node, unique in the cluster, or null if this session id manager is not started
+     */
+    public String getNodeName()
+    {
+        String nodePrefix = _nodePrefix;
+        return nodePrefix == null ? null : nodePrefix.substring(0, nodePrefix.length() - 1);
+    }
+
+    /**
+     * Registers the given session manager, that uses this session id manager.
+     *
+     * @param sessionManager the session manager to register
+     * @see #invalidateAll(String)
+     */
+    public void addSessionManager(TerracottaSessionManager sessionManager)
+    {
+        if (!_sessionManagers.contains(sessionManager)) _sessionManagers.add(sessionManager);
+    }
+
+    public void removeSessionManager(TerracottaSessionManager sessionManager)
+    {
+        _sessionManagers.remove(sessionManager);
+    }
+
+    /**
+     * @return the registered session managers
+     */
+    public List<TerracottaSessionManager> getSessionManagers()
+    {
+        return Collections.unmodifiableList(_sessionManagers);
     }
 
     public String getWorkerName()
@@ -116,26 +435,35 @@ public class TerracottaSessionIdManager extends AbstractLifeCycle implements Ses
 
     public boolean idInUse(String clusterId)
     {
+        // Only ids created by this node are in the filter, and for those a negative answer is definite
+        if (clusterId.startsWith(_nodePrefix))
+        {
+            synchronized (_idFilterLock)
+            {
+                if (_idFilter != null && !_idFilter.mightContain(clusterId))
+                {
+                    _idFilterNegatives.incrementAndGet();
+                    return false;
+                }
+            }
+        }
         return _sessionIds.containsKey(clusterId);
     }
 
     /**
      * When told to invalidate all session instances that share the same id, we must
-     * tell all contexts on the server for which it is defined to delete any session
-     * object they might have matching the id.
+     * tell all contexts for which it is defined to delete any session object they might
+     * have matching the id.
+     * Only the registered session managers that have a session with the given id are
+     * asked for the session, which requires to acquire the session lock.
      */
     public void invalidateAll(String clusterId)
     {
-        Handler[] contexts = _server.getChildHandlersByClass(WebAppContext.class);
-        for (int i = 0; contexts != null && i < contexts.length; i++)
+        for (TerracottaSessionManager sessionManager : _sessionManagers)
         {
-            WebAppContext webAppContext = (WebAppContext)contexts[i];
-            SessionManager sessionManager = webAppContext.getSessionHandler().getSessionManager();
-            if (sessionManager instanceof AbstractSessionManager)
-            {
-                Session session = ((AbstractSessionManager)sessionManager).getSession(clusterId);
-                if (session != null) session.invalidate();
-            }
+            if (!sessionManager.hasSession(clusterId)) continue;
+            Session session = sessionManager.getSession(clusterId);
+            if (session != null) session.invalidate();
         }
     }
 
@@ -143,6 +471,7 @@ public class TerracottaSessionIdManager extends AbstractLifeCycle implements Ses
     {
         // Generate a unique cluster id. This id must be unique across all nodes in the cluster,
         // since it is stored in the distributed shared session ids set.
+        // The shared set is only looked up for ids coming from the request.
 
         // A requested session ID can only be used if it is in use already.
         String requested_id = request.getRequestedSessionId();
@@ -154,18 +483,37 @@ public class TerracottaSessionIdManager extends AbstractLifeCycle implements Ses
         if (new_id != null && idInUse(new_id))
             return new_id;
 
-        // pick a new unique ID!
-        String id = null;
-        while (id == null || id.length() == 0 || idInUse(id))
-        {
-            long r = _weakRandom
-                    ? (hashCode() ^ Runtime.getRuntime().freeMemory() ^ _random.nextInt() ^ (((long)request.hashCode()) << 32))
-                    : _random.nextLong();
-            r ^= created;
-            if (request.getRemoteAddr() != null) r ^= request.getRemoteAddr().hashCode();
-            if (r < 0) r = -r;
-            id = Long.toString(r, 36);
-        }
+        return generateSessionId(request, created);
+    }
+
+    /**
+     * Generates a new session id for the given request, ignoring the requested session id and the
+     * session id already created for the request, if any.
+     *
+     * @param request the request whose session id is changed
+     * @param created the current time
+     * @return the new session id
+     * @see TerracottaSessionManager#renewSessionId(org.eclipse.jetty.server.Request)
+     */
+    public String renewSessionId(HttpServletRequest request, long created)
+    {
+        return generateSessionId(request, created);
+    }
+
+    private String generateSessionId(HttpServletRequest request, long created)
+    {
+        // Pick a new ID, unique by construction: the node prefix and the counter are unique,
+        // and the random part has a fixed length so that the id cannot be ambiguous
+        long r = nextRandom();
+        if (_weakRandom) r ^= hashCode() ^ (((long)request.hashCode()) << 32);
+        r ^= created;
+        if (request.getRemoteAddr() != null) r ^= request.getRemoteAddr().hashCode();
+        String random = Long.toString(r & Long.MAX_VALUE, 36);
+        StringBuilder builder = new StringBuilder(_nodePrefix.length() + 8 + RANDOM_LENGTH);
+        builder.append(_nodePrefix).append(Long.toString(_counter.getAndIncrement(), 36));
+        for (int i = random.length(); i < RANDOM_LENGTH; ++i)
+            builder.append('0');
+        String id = builder.append(random).toString();
 
         request.setAttribute(__NEW_SESSION_ID, id);
         return id;
@@ -173,8 +521,25 @@ public class TerracottaSessionIdManager extends AbstractLifeCycle implements Ses
 
     public void removeSession(HttpSession session)
     {
+        if (!((TerracottaSessionManager.Session)session).isMaterialized()) return;
         String clusterId = ((TerracottaSessionManager.Session)session).getClusterId();
-        _sessionIds.remove(clusterId);
+        if (clusterId.startsWith(_nodePrefix))
+        {
+            // Remove from the filter only ids that were in the shared set, and atomically with respect
+            // to rebuilds, so that no id is removed from the filter without having been added
+            synchronized (_idFilterLock)
+            {
+                if (_sessionIds.remove(clusterId) != null && _idFilter != null)
+                {
+                    _idFilter.remove(clusterId);
+                    if (_idFilterChanges != null) _idFilterChanges.put(clusterId, Boolean.FALSE);
+                }
+            }
+        }
+        else
+        {
+            _sessionIds.remove(clusterId);
+        }
     }
 
     public String getClusterId(String nodeId)
@@ -14,17 +14,41 @@
 
 package org.mortbay.terracotta.servlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.Principal;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -34,6 +58,7 @@ import com.tc.object.bytecode.Manageable;
 import com.tc.object.bytecode.Manager;
 import com.tc.object.bytecode.ManagerUtil;
 import org.eclipse.jetty.http.HttpCookie;
+import org.eclipse.jetty.http.PathMap;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.session.AbstractSessionManager;
@@ -68,11 +93,89 @@ import org.eclipse.jetty.util.log.Log;
  * all sessions to the node, causing a lot of unneeded traffic between nodes and the Terracotta server.
  * To avoid this, we keep a separate map from session id to expiration time, so we only need to migrate
  * all the expirations times to see if a session is expired or not.
+ * The expiration times are stored as <code>Long</code> values, that Terracotta treats as literals, and this
+ * map is their only location, so that they do not add clustered objects.
+ * <h4>Compact session data</h4>
+ * The shared {@link SessionData} is the only clustered object created for a session without attributes:
+ * it holds the timestamps and the version as primitive fields, it does not hold the session id (that is
+ * already copied by Terracotta as the key of the shared maps), and the map of the attribute names
+ * is only created when it is first needed.
+ * <h4>Attribute values</h4>
+ * The attribute values are not stored in the shared session data, that only holds the attribute names,
+ * but in a separate distributed shared map keyed by session id and attribute name, see {@link SharedAttributes}.
+ * This way each attribute value is faulted in independently by Terracotta when it is first read on a node, and
+ * a request that reads one small attribute does not migrate the other attributes of the session.
+ * The number of attribute values and the estimated bytes read from the shared map are available, see
+ * {@link #getSharedAttributeReadBytesPerRequest()}; byte counts require size accounting.
+ * <h4>Atomic attribute operations</h4>
+ * The {@link Session} offers atomic operations on single attributes, such as {@link Session#addAndGet(String, long)},
+ * {@link Session#compareAndSet(String, Object, Object)} and {@link Session#putIfAbsent(String, Object)}, that hold
+ * a Terracotta lock specific to the attribute only for the duration of the operation, and publish the new value
+ * immediately. The session lock is also held when an attribute is created. The attribute names and sizes and the
+ * session data version are written under a lock of their own, that is also taken when the attribute changes are
+ * published, and the session size limits apply to atomic operations as well. Attributes updated
+ * atomically must only be changed with atomic operations, and their changes are not notified to attribute listeners.
+ * Requests to the unlocked paths do not hold the session lock while they are handled, but only while the session is
+ * looked up and while the attribute changes are published at the end of the request, see
+ * {@link #setUnlockedPaths(String[])}; concurrent requests to these paths can update the same session concurrently
+ * via atomic operations, while the other attribute changes follow a last-writer-wins policy. Invalidating the
+ * session, changing its max inactive interval or renewing its id acquire again the session lock while they run.
+ * <h4>Node-local attributes</h4>
+ * Attribute values that implement {@link NodeLocalAttribute}, or whose names start with the node-local attribute
+ * prefix, are kept only in the node-local {@link Session} and are never written to the shared session data, see
+ * {@link #setNodeLocalAttributePrefix(String)}. They are lost when the session is dropped from the local cache.
+ * <h4>Sharded maps</h4>
+ * The session data and expiration maps can be partitioned over several Terracotta roots, chosen by the hash
+ * of the session id, so that creating, looking up and removing sessions from concurrent requests does not
+ * serialize on a single clustered monitor, see {@link #setShards(int)}.
+ * <h4>Session id rotation</h4>
+ * The id of an existing session can be changed, for example to protect against session fixation when a user
+ * logs in, see {@link #renewSessionId(Request)}. The shared session data and attribute values are not copied,
+ * but moved under the new id in the distributed shared maps while both the old and the new session locks are
+ * held, so that the cost of the rotation does not depend on the size of the session.
+ * <h4>Session index</h4>
+ * Optionally, the ids of the sessions are indexed by the value of one attribute, such as the name of the
+ * authenticated user, in a distributed shared map from index key to session ids, see {@link #setIndexAttribute(String)}.
+ * The index is updated when the attribute changes are published and when sessions are removed, and allows to
+ * find or invalidate all the sessions of a user without migrating the session data of the other sessions, see
+ * {@link #invalidateSessions(String)}. The index key of each session is kept in its session data.
+ * <h4>Cluster statistics</h4>
+ * Each node counts the sessions it creates, removes and times out in local counters, that the scavenger
+ * publishes periodically into a distributed shared map with one entry per node and counter, under a lock
+ * specific to the node. The created and removed counters follow the additions and removals of the entries
+ * of the sessions expiration map, on every path that adds or removes them, so that their difference is the
+ * number of sessions. Reading the cluster-wide statistics sums the entries of all nodes, so that neither
+ * updating nor reading the statistics contends on a shared counter or scans the session expirations,
+ * see {@link #getClusterSessions()}. The counts of the other nodes lag by at most one scavenge period.
+ * <h4>Maximum number of sessions</h4>
+ * Optionally, the number of sessions of a context in the cluster is capped, see {@link #setMaxSessions(int)}.
+ * The number of sessions is the size of the distributed shared expirations map, that is known locally without
+ * migrating its entries. When the cap is reached, creating a new session either fails, or evicts the least
+ * recently used sessions of the local session cache that are not in use, in the access order that the cache
+ * already maintains, see {@link #setEvictOnMaxSessions(boolean)}. Concurrent creations on different nodes may
+ * exceed the cap by the number of concurrent requests.
+ * <h4>Deferred sessions</h4>
+ * Optionally, new sessions are created only in the local session cache, without session lock and without
+ * entries in the distributed shared maps, see {@link #setDeferredSessions(boolean)}. Their attribute changes are
+ * published to a node-local map. A local session is materialized, that is published to the distributed shared
+ * maps with its attributes and locked, when it is accessed by a following request, when an attribute is updated
+ * atomically or when its id is renewed, and optionally when its attributes change, see
+ * {@link #setMaterializeOnAttributeChange(boolean)}. Sessions that are used by a single request, as is the case
+ * for crawlers, never reach the Terracotta server. Local sessions are expired by the scavenger of this node, and
+ * are timed out when they are evicted from the local session cache, unless they are in use, in which case they
+ * are materialized.
+ * Since other nodes do not know about local sessions, the following request must reach the same node,
+ * for example via a load balancer with session affinity.
  * <h4>Update of lastAccessedTime</h4>
  * As a performance improvement, the lastAccessedTime is updated only periodically, and not every time
  * a request enters a node. This optimization allows applications that have frequent requests but less
  * frequent accesses to the session to perform better, because the traffic between the node and the
  * Terracotta server is reduced. The update period is the scavenger period, see {@link Session#access(long)}.
+ * Optionally, the updates are written behind: requests only record the access times of their session in a
+ * node-local map, and a background task writes the access times of all the recorded sessions to the distributed
+ * shared session data and expirations map in a single Terracotta transaction, see {@link #setAccessTimePrecisionMs(long)}.
+ * The shared access times then lag the actual ones by up to twice the precision, and the scavenger takes that in
+ * account before expiring a session.
  * <h4>Terracotta lock id</h4>
  * The Terracotta lock id is based on the session id, but this alone is not sufficient, as there may be
  * two sessions with the same id for two different contexts. So we need session id and context path.
@@ -80,11 +183,77 @@ import org.eclipse.jetty.util.log.Log;
  * virtual hosts, and each virtual host must have a different session object.
  * Therefore the lock id we need to use is a combination of session id, context path and virtual host, see
  * {@link #newLockId(String)}.
+ * <h4>Session prefetch</h4>
+ * The requested session id is known at the beginning of the request, before the session lock is acquired.
+ * When the session is not in the local cache, we start to fault in the session data (attributes included)
+ * from a separate thread while the request thread is waiting for the session lock, so that the network
+ * cost of the locking and of the data migration overlap instead of adding up, see {@link #prefetch(Request)}.
+ * The prefetch reads the session data without holding the session lock; this is safe because it only
+ * migrates the data to this node, and the request thread will read it again once the lock is acquired.
+ * Prefetching is disabled by default, see {@link #setPrefetchThreads(int)}; when enabled, the prefetches
+ * waiting for a thread are bounded by {@link #setPrefetchQueueSize(int)}, and the ones that do not fit are
+ * discarded, since the request thread fetches the data anyway.
+ * <h4>Off-heap session store</h4>
+ * The local session cache can be bounded, see {@link #setMaxLocalSessions(int)}, so that the session data
+ * of the least recently used sessions is no longer referenced by this node and can be flushed from the heap
+ * by Terracotta. Optionally, evicted sessions are kept in serialized form in an {@link OffHeapSessionStore},
+ * see {@link #setOffHeapCapacity(long)}. Evicted sessions are serialized at the end of the request that
+ * evicted them, or by the scavenger, while holding their session lock and outside of the monitor of the local
+ * session cache; sessions in use on other nodes are not stored. When an evicted session is requested again,
+ * its attributes are deserialized from the off-heap store instead of being fetched from the Terracotta server,
+ * provided that the session data version did not change in the meantime. The version of the session data is
+ * incremented every time an attribute is set or removed, so applications that modify attribute values in place
+ * without calling <code>setAttribute()</code> (or {@link Session#markDirty(String)}) must not enable the
+ * off-heap store.
+ * <h4>Attribute changes</h4>
+ * During a request, the attributes that are set, removed or marked dirty are tracked by the session,
+ * and only those are published to the shared attributes map at the end of the request, while the session
+ * lock is still held. Setting an attribute to the very same object it already refers to does not generate
+ * traffic to the Terracotta server: shared attribute values modified in place are replicated by Terracotta
+ * anyway. An equal but different object is published, since the application may rely on its identity.
+ * <h4>Serialized attributes</h4>
+ * Optionally, attribute values are stored in the shared session data as byte arrays, see
+ * {@link #setSerializedAttributes(boolean)}. This keeps large object graphs out of the Terracotta instrumented
+ * heap, and each changed attribute is replicated as a single byte array. Values are deserialized lazily on first
+ * access in a request, and only the attributes that are set or marked dirty are serialized again: once when they
+ * are set, or at the end of the request when they are marked dirty. Those whose serialized form did not change
+ * from the one read during the request are not published.
+ * Values are encoded by {@link AttributeCodecs}, that has compact encodings for strings, boxed primitives, byte
+ * arrays and small collections of those, falls back to Java serialization for other values, and can be extended
+ * with application codecs, see {@link #getAttributeCodecs()}. Large encoded values can be compressed,
+ * see {@link AttributeCodecs#setCompressionThreshold(int)}.
+ * Attribute values that are modified in place must be set again or marked dirty, see {@link Session#markDirty(String)}.
+ * Values are encoded when they are set, so that values that cannot be encoded are rejected immediately; values
+ * modified in place so that they can no longer be encoded make the request fail when the changes are published.
+ * <h4>Session size</h4>
+ * Optionally, the estimated size of each session is kept in the shared session data, updated incrementally
+ * when attributes are published, see {@link #setSizeAccounting(boolean)}; it is always kept with serialized
+ * attributes, where it is exact. Attribute values are sized by their {@link AttributeCodecs} encoding.
+ * The distribution of the sizes of the sessions cached by this node is available from
+ * {@link #getSessionSizeHistogram()}. A soft limit logs a warning when a session grows beyond it, and a hard
+ * limit rejects the calls to {@link Session#setAttribute(String, Object)} that would make a session grow
+ * beyond it, see {@link #setSessionSizeSoftLimit(long)} and {@link #setSessionSizeHardLimit(long)}.
+ * <h4>Session snapshot</h4>
+ * Optionally, the sessions in the local cache are written to a memory-mapped {@link SessionSnapshot} file
+ * when this session manager stops, see {@link #setSnapshotFile(String)}. When it starts again, the snapshot
+ * is mapped back and used as a warm cache: on a local cache miss the attributes are restored from the snapshot
+ * if the session still exists, is not expired, and its session data version is the same as in the snapshot.
+ * Like for the off-heap store, attribute values must not be modified in place.
+ * <h4>Passivation of idle sessions</h4>
+ * Sessions that are idle for longer than the passivation idle period, but not yet expired, are moved by
+ * the scavenger out of the distributed shared session data map into a {@link PassivationStore}, see
+ * {@link #setPassivationStore(PassivationStore)} and {@link #setPassivationIdleMs(long)}.
+ * The session expiration entry is kept as a tombstone, so that the session id is still valid and the
+ * session can still be expired. Passivated sessions are transparently activated on the next access.
+ * Candidates for passivation are detected from the expiration map using the default maximum inactive
+ * interval, so that the session data of active sessions is not migrated to check their idle time.
  *
  * @see TerracottaSessionIdManager
  */
 public class TerracottaSessionManager extends AbstractSessionManager implements Runnable
 {
+    private static final int SIZE_HISTOGRAM_BUCKETS = 12;
+
     /**
      * The local cache of session objects.
      */
@@ -95,18 +264,87 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
      * to the objects are also replicated, recursively.
      * Getting objects from the map result in the objects being fetched from Terracotta.
      */
-    private Hashtable<String, SessionData> _sessionDatas;
+    private ShardedMap<String, SessionData> _sessionDatas;
     /**
      * The distributed shared session expirations map, needed for scavenging.
      * In particular it supports removal of sessions that have been orphaned by nodeA
      * (for example because it crashed) by virtue of scavenging performed by nodeB.
      */
-    private Hashtable<String, MutableLong> _sessionExpirations;
+    private ShardedMap<String, Long> _sessionExpirations;
+    /**
+     * The distributed shared attribute values map, keyed by session id and attribute name.
+     */
+    private ShardedMap<String, Object> _sessionAttributes;
+    /**
+     * The distributed shared session index, from index key to the session ids separated by spaces;
+     * null if no index attribute is set.
+     */
+    private ShardedMap<String, String> _sessionIndex;
+    /**
+     * The distributed shared statistics map, from node name and counter name to the counter value
+     * last published by that node.
+     */
+    private Hashtable<String, Long> _statistics;
+    private final AtomicLong _sessionsCreated = new AtomicLong();
+    private final AtomicLong _sessionsRemoved = new AtomicLong();
+    private final AtomicLong _sessionsTimedOut = new AtomicLong();
+    private String _statisticsNodeName;
+    private int _maxSessions = -1;
+    private boolean _evictOnMaxSessions = true;
+    private final AtomicLong _sessionsEvicted = new AtomicLong();
+    private final AtomicLong _sessionsRefused = new AtomicLong();
+    private boolean _deferredSessions;
+    private boolean _materializeOnAttributeChange = true;
+    /**
+     * The sessions that only exist in the local session cache, and have not been materialized yet.
+     */
+    private final ConcurrentMap<String, Session> _localSessions = new ConcurrentHashMap<String, Session>();
+    private long _accessTimePrecisionMs = -1;
+    private ScheduledFuture<?> _accessTimesWriter;
+    /**
+     * The access times not yet written to the distributed shared maps, from session id to the previous
+     * access time and the time of the last access.
+     */
+    private final ConcurrentMap<String, long[]> _pendingAccessTimes = new ConcurrentHashMap<String, long[]>();
+    private String _indexAttribute;
+    private int _shards = 1;
     private String _contextPath;
     private String _virtualHost;
     private long _scavengePeriodMs = 30000;
     private ScheduledExecutorService _scheduler;
     private ScheduledFuture<?> _scavenger;
+    private int _prefetchThreads;
+    private int _prefetchQueueSize = 64;
+    private int _bulkBatchSize = 100;
+    private boolean _serializedAttributes;
+    private AttributeCodecs _attributeCodecs = new AttributeCodecs();
+    private ExecutorService _prefetcher;
+    private int _maxLocalSessions = -1;
+    private long _offHeapCapacity;
+    private int _offHeapSlabSize = 1024 * 1024;
+    private OffHeapSessionStore _offHeapStore;
+    private String _snapshotFile;
+    private SessionSnapshot _snapshot;
+    private PassivationStore _passivationStore;
+    private long _passivationIdleMs = -1;
+    private boolean _sizeAccounting;
+    private String _nodeLocalAttributePrefix;
+    private PathMap _unlockedPaths;
+    private long _sessionSizeSoftLimit = -1;
+    private long _sessionSizeHardLimit = -1;
+    /**
+     * The cluster ids of the sessions whose prefetch is in progress, to avoid duplicate prefetches
+     * when concurrent requests for the same session arrive at the same time.
+     */
+    private final ConcurrentMap<String, Boolean> _prefetching = new ConcurrentHashMap<String, Boolean>();
+    /**
+     * The sessions evicted from the local cache, to be serialized into the off-heap store
+     * outside of the monitor of the local cache.
+     */
+    private final Queue<Session> _evictedSessions = new ConcurrentLinkedQueue<Session>();
+    private final AtomicLong _sharedAttributeReads = new AtomicLong();
+    private final AtomicLong _sharedAttributeReadBytes = new AtomicLong();
+    private final AtomicLong _sessionRequests = new AtomicLong();
 
     public void doStart() throws Exception
     {
@@ -115,11 +353,79 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
         _contextPath = canonicalize(_context.getContextPath());
         _virtualHost = virtualHostFrom(_context);
 
-        _sessions = Collections.synchronizedMap(new HashMap<String, Session>());
-        _sessionDatas = newSharedMap("sessionData:" + _contextPath + ":" + _virtualHost);
-        _sessionExpirations = newSharedMap("sessionExpirations:" + _contextPath + ":" + _virtualHost);
+        _sessions = Collections.synchronizedMap(new LocalSessionCache());
+        if (_offHeapCapacity > 0) _offHeapStore = new OffHeapSessionStore(_offHeapCapacity, _offHeapSlabSize);
+        _sessionDatas = newShardedMap("sessionData:" + _contextPath + ":" + _virtualHost);
+        _sessionExpirations = newShardedMap("sessionExpirations:" + _contextPath + ":" + _virtualHost);
+        _sessionAttributes = newShardedMap("sessionAttributes:" + _contextPath + ":" + _virtualHost);
+        _statistics = newSharedMap("sessionStatistics:" + _contextPath + ":" + _virtualHost);
+        restoreStatistics();
+        if (_indexAttribute != null) _sessionIndex = newShardedMap("sessionIndex:" + _contextPath + ":" + _virtualHost);
+        readSnapshot();
+        if (getIdManager() instanceof TerracottaSessionIdManager)
+            ((TerracottaSessionIdManager)getIdManager()).addSessionManager(this);
         _scheduler = Executors.newSingleThreadScheduledExecutor();
+        if (_prefetchThreads > 0) _prefetcher = newPrefetcher();
         scheduleScavenging();
+        scheduleAccessTimesWriter();
+    }
+
+    private String snapshotKey()
+    {
+        return _contextPath + ":" + _virtualHost;
+    }
+
+    private void readSnapshot()
+    {
+        if (_snapshotFile == null) return;
+        try
+        {
+            _snapshot = SessionSnapshot.read(new File(_snapshotFile), snapshotKey());
+            if (_snapshot != null)
+                Log.info("Mapped session snapshot {} with {} sessions", _snapshotFile, _snapshot.getSize());
+        }
+        catch (IOException x)
+        {
+            Log.warn("Could not read session snapshot " + _snapshotFile, x);
+        }
+    }
+
+    private void writeSnapshot()
+    {
+        if (_snapshotFile == null || _sessions == null) return;
+        List<Session> sessions;
+        synchronized (_sessions)
+        {
+            sessions = new ArrayList<Session>(_sessions.values());
+        }
+        List<SessionSnapshot.Entry> entries = new ArrayList<SessionSnapshot.Entry>(sessions.size());
+        for (Session session : sessions)
+        {
+            if (!session.isMaterialized()) continue;
+            SessionData sessionData = session.getSessionData();
+            long version = sessionData.getVersion();
+            byte[] data = serializeAttributes(session);
+            if (data != null)
+                entries.add(new SessionSnapshot.Entry(session.getClusterId(), version, getExpirationTime(session.getClusterId()), data));
+        }
+        try
+        {
+            SessionSnapshot.write(new File(_snapshotFile), snapshotKey(), entries);
+            Log.info("Written session snapshot {} with {} sessions", _snapshotFile, entries.size());
+        }
+        catch (IOException x)
+        {
+            Log.warn("Could not write session snapshot " + _snapshotFile, x);
+        }
+    }
+
+    private <V> ShardedMap<String, V> newShardedMap(String name)
+    {
+        // A single shard keeps the root name used before sharding was introduced
+        Hashtable<String, V>[] shards = new Hashtable[_shards];
+        for (int i = 0; i < shards.length; ++i)
+            shards[i] = newSharedMap(shards.length == 1 ? name : name + ":" + i);
+        return new ShardedMap<String, V>(shards);
     }
 
     private Hashtable newSharedMap(String name)
@@ -154,16 +460,54 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
             _scavenger = _scheduler.scheduleWithFixedDelay(this, scavengePeriod, scavengePeriod, TimeUnit.MILLISECONDS);
     }
 
+    private void scheduleAccessTimesWriter()
+    {
+        if (_accessTimesWriter != null)
+        {
+            _accessTimesWriter.cancel(false);
+            _accessTimesWriter = null;
+        }
+        long precision = getAccessTimePrecisionMs();
+        if (precision > 0 && _scheduler != null)
+        {
+            _accessTimesWriter = _scheduler.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    writeAccessTimes();
+                }
+            }, precision, precision, TimeUnit.MILLISECONDS);
+        }
+    }
+
     public void doStop() throws Exception
     {
+        if (getIdManager() instanceof TerracottaSessionIdManager)
+            ((TerracottaSessionIdManager)getIdManager()).removeSessionManager(this);
         if (_scavenger != null) _scavenger.cancel(true);
+        if (_accessTimesWriter != null) _accessTimesWriter.cancel(false);
+        _accessTimesWriter = null;
         if (_scheduler != null) _scheduler.shutdownNow();
+        writeAccessTimes();
+        if (_prefetcher != null) _prefetcher.shutdownNow();
+        _prefetcher = null;
+        _prefetching.clear();
+        publishStatistics();
+        writeSnapshot();
+        _snapshot = null;
+        _evictedSessions.clear();
+        if (_offHeapStore != null) _offHeapStore.clear();
+        _offHeapStore = null;
         super.doStop();
     }
 
     public void run()
     {
         scavenge();
+        storeEvictedSessions();
+        publishStatistics();
+        // The session id filter is rebuilt here rather than by the request that fills it
+        if (getIdManager() instanceof TerracottaSessionIdManager) ((TerracottaSessionIdManager)getIdManager()).rebuildIdFilter();
     }
 
     public void enter(Request request)
@@ -194,6 +538,248 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
         }
     }
 
+    /**
+     * Starts to fault in asynchronously the session data for the requested session id, if any.
+     * This method is called at the beginning of every request, just before {@link #enter(Request)},
+     * so that the migration of the session data from the Terracotta server overlaps with the
+     * acquisition of the session lock.
+     *
+     * @param request the request entering this session manager
+     */
+    public void prefetch(Request request)
+    {
+        String requestedSessionId = request.getRequestedSessionId();
+        if (requestedSessionId == null) return;
+
+        ExecutorService prefetcher = _prefetcher;
+        if (prefetcher == null) return;
+
+        String clusterId = getIdManager().getClusterId(requestedSessionId);
+        // Local cache hit, nothing to fetch from the Terracotta server
+        if (_sessions.containsKey(clusterId)) return;
+
+        prefetch(prefetcher, clusterId);
+    }
+
+    private ExecutorService newPrefetcher()
+    {
+        return new ThreadPoolExecutor(_prefetchThreads, _prefetchThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, _prefetchQueueSize)), new RejectedExecutionHandler()
+        {
+            public void rejectedExecution(Runnable task, ThreadPoolExecutor executor)
+            {
+                // The queue is full or the prefetcher has been shut down: discard the prefetch,
+                // the request thread will fetch the data synchronously
+                String clusterId = ((Prefetch)task)._clusterId;
+                _prefetching.remove(clusterId);
+                Log.debug("Discarded prefetch of session {}", clusterId);
+            }
+        });
+    }
+
+    private void prefetch(ExecutorService prefetcher, String clusterId)
+    {
+        if (_prefetching.putIfAbsent(clusterId, Boolean.TRUE) != null) return;
+        prefetcher.execute(new Prefetch(clusterId));
+    }
+
+    private void prefetch(String clusterId)
+    {
+        Thread thread = Thread.currentThread();
+        ClassLoader old_loader = thread.getContextClassLoader();
+        if (_loader != null) thread.setContextClassLoader(_loader);
+        try
+        {
+            // Looking up the session data migrates it to this node; the attribute values
+            // are then looked up so that they are migrated too.
+            SessionData sessionData = _sessionDatas.get(clusterId);
+            Log.debug("Prefetched session data {} with id {}", sessionData, clusterId);
+            if (sessionData != null)
+            {
+                for (String name : new ArrayList<String>(sessionData.getAttributeNames()))
+                    _sessionAttributes.get(attributeKey(clusterId, name));
+            }
+        }
+        catch (RuntimeException x)
+        {
+            // We read without holding the session lock, so the data may change under us.
+            // This is just an optimization: the request thread will read the data again
+            // once the lock is acquired, so here we just ignore the failure.
+            Log.ignore(x);
+        }
+        finally
+        {
+            _prefetching.remove(clusterId);
+            thread.setContextClassLoader(old_loader);
+        }
+    }
+
+    /**
+     * @param paths the path specs, relative to the context path, of the requests that must not hold the session
+     * lock while they are handled, or null
+     * @see #suspend(Request)
+     */
+    public void setUnlockedPaths(String[] paths)
+    {
+        PathMap unlockedPaths = null;
+        if (paths != null && paths.length > 0)
+        {
+            unlockedPaths = new PathMap();
+            for (String path : paths)
+                unlockedPaths.put(path, Boolean.TRUE);
+        }
+        _unlockedPaths = unlockedPaths;
+    }
+
+    public String[] getUnlockedPaths()
+    {
+        PathMap unlockedPaths = _unlockedPaths;
+        if (unlockedPaths == null) return null;
+        return (String[])unlockedPaths.keySet().toArray(new String[unlockedPaths.size()]);
+    }
+
+    /**
+     * @param target the request path, relative to the context path
+     * @return whether the request must not hold the session lock while it is handled
+     */
+    public boolean isUnlockedPath(String target)
+    {
+        PathMap unlockedPaths = _unlockedPaths;
+        return unlockedPaths != null && target != null && unlockedPaths.match(target) != null;
+    }
+
+    /**
+     * Releases the lock acquired by {@link #enter(Request)} for the requested session, so that
+     * the request can be handled without holding it. Must be paired with {@link #resume(Request)}.
+     * <br />
+     * The session operations that write the shared session state outside of the attributes, that are
+     * {@link Session#invalidate()}, {@link Session#setMaxInactiveInterval(int)} and {@link #renewSessionId(Request)},
+     * acquire the session lock again for their duration, since the session lock is reentrant.
+     *
+     * @param request the request to an unlocked path
+     * @see #setUnlockedPaths(String[])
+     */
+    public void suspend(Request request)
+    {
+        /**
+         * SESSION LOCKING
+         * Sessions created by the request stay locked until {@link #exit(Request)}.
+         */
+        String requestedSessionId = request.getRequestedSessionId();
+        if (requestedSessionId != null) exit(getIdManager().getClusterId(requestedSessionId));
+    }
+
+    /**
+     * Acquires again the lock released by {@link #suspend(Request)}, before the session is completed.
+     *
+     * @param request the request to an unlocked path
+     */
+    public void resume(Request request)
+    {
+        String requestedSessionId = request.getRequestedSessionId();
+        if (requestedSessionId != null) enter(getIdManager().getClusterId(requestedSessionId));
+    }
+
+    /**
+     * Changes the id of the session of the given request, keeping its attributes.
+     * <br />
+     * The session data and the attribute values are moved under the new id in the distributed shared maps,
+     * and a new {@link Session} replaces the previous one, that is no longer valid. The cookie with the new
+     * session id is added to the response. Session listeners are not notified, since the session is not
+     * created nor destroyed.
+     * <br />
+     * Must be called while handling the request. The old session lock is acquired again for the duration
+     * of the renewal, since requests to the unlocked paths do not hold it.
+     *
+     * @param request the request whose session id is changed
+     * @return the session with the new id
+     * @throws IllegalStateException if the request does not have a session
+     */
+    public HttpSession renewSessionId(Request request)
+    {
+        HttpSession httpSession = request.getSession(false);
+        if (!(httpSession instanceof Session)) throw new IllegalStateException("No session to renew");
+        Session session = (Session)httpSession;
+        String oldClusterId = session.getClusterId();
+        enter(oldClusterId);
+        try
+        {
+            return doRenewSessionId(request, session, oldClusterId);
+        }
+        finally
+        {
+            exit(oldClusterId);
+        }
+    }
+
+    private Session doRenewSessionId(Request request, Session session, String oldClusterId)
+    {
+        if (!session.isMaterialized()) materialize(session);
+        TerracottaSessionIdManager idManager = (TerracottaSessionIdManager)getIdManager();
+        String newClusterId = idManager.renewSessionId(request, System.currentTimeMillis());
+
+        /**
+         * SESSION LOCKING
+         * The old session lock is held by the caller; the new session lock is acquired
+         * here and released by {@link #exit(Request)}, like for sessions created by the request.
+         */
+        enter(newClusterId);
+        Session result;
+        try
+        {
+            // Refer to method {@link #scavenge()} for an explanation of synchronization order
+            synchronized (_sessions)
+            {
+                result = session.renew(newClusterId);
+                SessionData sessionData = result.getSessionData();
+                _sessionDatas.put(newClusterId, sessionData);
+                // The expiration entry moves to the new id, so the session counters do not change,
+                // unless the old entry was removed concurrently and a new one must be added
+                Long expiration = _sessionExpirations.remove(oldClusterId);
+                if (expiration == null)
+                {
+                    long maxIdleMs = result.getMaxIdlePeriodMs();
+                    expiration = maxIdleMs > 0 ? System.currentTimeMillis() + maxIdleMs : -1L;
+                    _sessionsCreated.incrementAndGet();
+                }
+                _sessionExpirations.put(newClusterId, expiration);
+                for (String name : sessionData.getAttributeNames())
+                {
+                    Object value = _sessionAttributes.remove(attributeKey(oldClusterId, name));
+                    if (value != null) _sessionAttributes.put(attributeKey(newClusterId, name), value);
+                }
+                _sessionDatas.remove(oldClusterId);
+                _sessions.remove(oldClusterId);
+                _sessions.put(newClusterId, result);
+                if (_offHeapStore != null) _offHeapStore.remove(oldClusterId);
+            }
+        }
+        catch (RuntimeException x)
+        {
+            exit(newClusterId);
+            throw x;
+        }
+        String indexKey = result.getSessionData().getIndexKey();
+        if (indexKey != null)
+        {
+            index(indexKey, newClusterId, true);
+            index(indexKey, oldClusterId, false);
+        }
+        idManager.addSession(result);
+        idManager.removeSession(session);
+        Log.debug("Renewed session with id {} to id {}", oldClusterId, newClusterId);
+
+        request.setSession(result);
+        HttpCookie cookie = getSessionCookie(result, _context.getContextPath(), request.isSecure());
+        if (cookie != null) request.getResponse().addCookie(cookie);
+
+        // The old session lock is released by exit(Request) only if it was the requested session
+        String requestedSessionId = request.getRequestedSessionId();
+        if (requestedSessionId == null || !oldClusterId.equals(getIdManager().getClusterId(requestedSessionId)))
+            exit(oldClusterId);
+        return result;
+    }
+
     protected void enter(String clusterId)
     {
         Lock.lock(newLockId(clusterId));
@@ -245,6 +831,10 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
                 }
             }
         }
+
+        // The sessions evicted from the local cache during the request are stored
+        // now that the session lock is released, and outside of the cache monitor
+        storeEvictedSessions();
     }
 
     protected void exit(String clusterId)
@@ -262,16 +852,28 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
          */
         String clusterId = getClusterId(session);
         Session tcSession = (Session)session;
+        if (!tcSession.isMaterialized())
+        {
+            _localSessions.put(clusterId, tcSession);
+            _sessions.put(clusterId, tcSession);
+            Log.debug("Added local session {} with id {}", tcSession, clusterId);
+            return;
+        }
         SessionData sessionData = tcSession.getSessionData();
-        _sessionExpirations.put(clusterId, sessionData._expiration);
+        // Set expiration time to negative value if the session never expires
+        long maxIdleMs = tcSession.getMaxIdlePeriodMs();
+        _sessionExpirations.put(clusterId, maxIdleMs > 0 ? sessionData.getCreationTime() + maxIdleMs : -1L);
         _sessionDatas.put(clusterId, sessionData);
         _sessions.put(clusterId, tcSession);
+        _sessionsCreated.incrementAndGet();
         Log.debug("Added session {} with id {}", tcSession, clusterId);
     }
 
     @Override
     public HttpCookie access(HttpSession session, boolean secure)
     {
+        // A following request for a local session, that is therefore not used by a single request
+        if (session instanceof Session && !((Session)session).isMaterialized()) materialize((Session)session);
         HttpCookie cookie = super.access(session, secure);
         Log.debug("Accessed session {} with id {}", session, session.getId());
         return cookie;
@@ -280,10 +882,43 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
     @Override
     public void complete(HttpSession session)
     {
+        // Publish the attributes changed during the request, before possibly invalidating the session
+        if (session instanceof Session)
+        {
+            Session tcSession = (Session)session;
+            if (!tcSession.isMaterialized() && isMaterializeOnAttributeChange() && tcSession.isValid() && tcSession.hasAttributeChanges())
+                materialize(tcSession);
+            tcSession.endRequest();
+        }
         super.complete(session);
         Log.debug("Completed session {} with id {}", session, session.getId());
     }
 
+    /**
+     * @param clusterId the session id
+     * @return the shared expiration time of the given session, or -1 if the session does not exist
+     */
+    private long getExpirationTime(String clusterId)
+    {
+        Long result = _sessionExpirations.get(clusterId);
+        return result == null ? -1L : result;
+    }
+
+    /**
+     * Updates the shared expiration time of the given session, if it exists.
+     * Must be called while holding the session lock.
+     *
+     * @param clusterId the session id
+     * @param time the expiration time, or a negative value if the session never expires
+     */
+    private void setExpirationTime(String clusterId, long time)
+    {
+        // If the entry has been removed between the check and the put, the put adds an orphan entry,
+        // that is counted like a new one so that its removal by the scavenger keeps the counters balanced
+        if (_sessionExpirations.containsKey(clusterId) && _sessionExpirations.put(clusterId, time) == null)
+            _sessionsCreated.incrementAndGet();
+    }
+
     protected void removeSession(String clusterId)
     {
         /**
@@ -296,14 +931,31 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
         // Remove locally cached session
         Session session = _sessions.remove(clusterId);
         Log.debug("Removed session {} with id {}", session, clusterId);
+        // The attribute values are unbound after this method returns, so they must stay readable
+        if (session != null) session.detach();
+
+        _pendingAccessTimes.remove(clusterId);
+
+        // Local sessions have nothing to remove from the distributed shared maps
+        if (_localSessions.remove(clusterId) != null) return;
 
         // It may happen that one node removes its expired session data,
         // so that when this node does the same, the session data is already gone
         SessionData sessionData = _sessionDatas.remove(clusterId);
         Log.debug("Removed session data {} with id {}", sessionData, clusterId);
+        if (sessionData != null)
+        {
+            for (String name : sessionData.getAttributeNames())
+                _sessionAttributes.remove(attributeKey(clusterId, name));
+            String indexKey = sessionData.getIndexKey();
+            if (indexKey != null) index(indexKey, clusterId, false);
+        }
+
+        // Remove the expiration entry used in scavenging; it is also kept for passivated sessions,
+        // so it tells whether the session has been removed by this call
+        if (_sessionExpirations.remove(clusterId) != null) _sessionsRemoved.incrementAndGet();
 
-        // Remove the expiration entry used in scavenging
-        _sessionExpirations.remove(clusterId);
+        if (_offHeapStore != null) _offHeapStore.remove(clusterId);
     }
 
     public void setScavengePeriodMs(long ms)
@@ -315,123 +967,1172 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
         scheduleScavenging();
     }
 
+    /**
+     * Sets the number of shards of the distributed shared session data and expiration maps.
+     * Each shard is a separate Terracotta root, so that operations on sessions in different shards
+     * do not contend on the same clustered monitor. All nodes must use the same number of shards.
+     *
+     * @param shards the number of shards
+     */
+    public void setShards(int shards)
+    {
+        if (isStarted()) throw new IllegalStateException("Cannot change the number of shards after start");
+        if (shards < 1) throw new IllegalArgumentException("Invalid number of shards " + shards);
+        _shards = shards;
+    }
+
+    public int getShards()
+    {
+        return _shards;
+    }
+
     public long getScavengePeriodMs()
     {
         return _scavengePeriodMs;
     }
 
-    public AbstractSessionManager.Session getSession(String clusterId)
+    /**
+     * @param threads the number of threads used to prefetch session data, or 0 to disable prefetching
+     * @see #prefetch(Request)
+     */
+    public void setPrefetchThreads(int threads)
     {
-        Session result = null;
+        if (isStarted()) throw new IllegalStateException("Cannot change the prefetch threads after start");
+        _prefetchThreads = threads < 0 ? 0 : threads;
+    }
 
-        /**
-         * SESSION LOCKING
-         * This is an entry point for session locking.
-         * We lookup the session given the id, and if it exist we hold the lock.
-         * We unlock on end of method, since this method can be called outside
-         * an {@link #enter(String)}/{@link #exit(String)} pair.
-         */
-        enter(clusterId);
-        try
-        {
-            // Need to synchronize because we use a get-then-put that must be atomic
-            // on the local session cache
-            // Refer to method {@link #scavenge()} for an explanation of synchronization order:
-            // first on _sessions, then on _sessionExpirations.
-            synchronized (_sessions)
-            {
-                result = _sessions.get(clusterId);
-                if (result == null)
-                {
-                    Log.debug("Session with id {} --> local cache miss", clusterId);
-
-                    // Lookup the distributed shared sessionData object.
-                    // This will migrate the session data to this node from the Terracotta server
-                    // We have not grabbed the distributed lock associated with this session yet,
-                    // so another node can migrate the session data as well. This is no problem,
-                    // since just after this method returns the distributed lock will be grabbed by
-                    // one node, the session data will be changed and the lock released.
-                    // The second node contending for the distributed lock will then acquire it,
-                    // and the session data information will be migrated lazily by Terracotta means.
-                    // We are only interested in having a SessionData reference locally.
-                    Log.debug("Distributed session data with id {} --> lookup", clusterId);
-                    SessionData sessionData = _sessionDatas.get(clusterId);
-                    if (sessionData == null)
-                    {
-                        Log.debug("Distributed session data with id {} --> not found", clusterId);
-                    }
-                    else
-                    {
-                        Log.debug("Distributed session data with id {} --> found", clusterId);
-                        // Wrap the migrated session data and cache the Session object
-                        result = new Session(sessionData);
-                        _sessions.put(clusterId, result);
-                    }
-                }
-                else
-                {
-                    Log.debug("Session with id {} --> local cache hit", clusterId);
-                    if (!_sessionExpirations.containsKey(clusterId))
-                    {
-                        // A session is present in the local cache, but it has been expired
-                        // or invalidated on another node, perform local clean up.
-                        _sessions.remove(clusterId);
-                        result = null;
-                        Log.debug("Session with id {} --> local cache stale");
-                    }
-                }
-            }
-        }
-        finally
-        {
-            /**
-             * SESSION LOCKING
-             */
-            exit(clusterId);
-        }
-        return result;
+    public int getPrefetchThreads()
+    {
+        return _prefetchThreads;
     }
 
-    protected String newLockId(String clusterId)
+    /**
+     * @param queueSize the maximum number of prefetches waiting for a prefetch thread; further prefetches
+     * are discarded until the queue drains
+     * @see #setPrefetchThreads(int)
+     */
+    public void setPrefetchQueueSize(int queueSize)
     {
-        StringBuilder builder = new StringBuilder(clusterId);
-        builder.append(":").append(_contextPath);
-        builder.append(":").append(_virtualHost);
-        return builder.toString();
+        if (isStarted()) throw new IllegalStateException("Cannot change the prefetch queue size after start");
+        _prefetchQueueSize = queueSize;
     }
 
-    // TODO: This method is not needed, only used for testing
-    public Map getSessionMap()
+    public int getPrefetchQueueSize()
     {
-        return Collections.unmodifiableMap(_sessions);
+        return _prefetchQueueSize;
     }
 
-    // TODO: rename to getSessionsCount()
-    // TODO: also, not used if not by superclass for unused statistics data
-    public int getSessions()
+    /**
+     * @param batchSize the number of sessions locked and fetched together by {@link #getSessions(Collection)}
+     */
+    public void setBulkBatchSize(int batchSize)
     {
-        return _sessions.size();
+        _bulkBatchSize = batchSize;
     }
 
-    protected Session newSession(HttpServletRequest request)
+    public int getBulkBatchSize()
     {
-        /**
-         * SESSION LOCKING
-         * This is an entry point for session locking.
-         * We arrive here when we have to create a new
-         * session, for a request.getSession(true) call.
-         */
-        Session result = new Session(request);
+        return _bulkBatchSize;
+    }
 
-        String requestedSessionId = request.getRequestedSessionId();
-        if (requestedSessionId == null)
-        {
-            // Here the user requested a fresh new session, lock it.
-            enter(result.getClusterId());
-        }
-        else
-        {
-            if (result.getClusterId().equals(getIdManager().getClusterId(requestedSessionId)))
+    /**
+     * @param serializedAttributes whether attribute values are stored in the shared session data in serialized form;
+     * must be the same on all nodes of the cluster
+     */
+    public void setSerializedAttributes(boolean serializedAttributes)
+    {
+        if (isStarted()) throw new IllegalStateException("Cannot change the attribute storage after start");
+        _serializedAttributes = serializedAttributes;
+    }
+
+    public boolean isSerializedAttributes()
+    {
+        return _serializedAttributes;
+    }
+
+    /**
+     * @return the codecs used to encode attribute values when they are stored in serialized form,
+     * where application codecs can be added
+     * @see #setSerializedAttributes(boolean)
+     */
+    public AttributeCodecs getAttributeCodecs()
+    {
+        return _attributeCodecs;
+    }
+
+    public void setAttributeCodecs(AttributeCodecs attributeCodecs)
+    {
+        if (isStarted()) throw new IllegalStateException("Cannot change the attribute codecs after start");
+        _attributeCodecs = attributeCodecs;
+    }
+
+    /**
+     * @param maxSessions the maximum number of sessions of this context in the cluster, or a negative value for no limit
+     * @see #setEvictOnMaxSessions(boolean)
+     */
+    public void setMaxSessions(int maxSessions)
+    {
+        _maxSessions = maxSessions;
+    }
+
+    public int getMaxSessions()
+    {
+        return _maxSessions;
+    }
+
+    /**
+     * @param evictOnMaxSessions whether creating a session when the maximum number of sessions is reached
+     * invalidates the least recently used sessions cached by this node, or fails with an {@link IllegalStateException}
+     * @see #setMaxSessions(int)
+     */
+    public void setEvictOnMaxSessions(boolean evictOnMaxSessions)
+    {
+        _evictOnMaxSessions = evictOnMaxSessions;
+    }
+
+    public boolean isEvictOnMaxSessions()
+    {
+        return _evictOnMaxSessions;
+    }
+
+    /**
+     * @return the number of sessions invalidated by this node to stay within the maximum number of sessions
+     */
+    public long getSessionsEvicted()
+    {
+        return _sessionsEvicted.get();
+    }
+
+    /**
+     * @return the number of session creations refused by this node because of the maximum number of sessions
+     */
+    public long getSessionsRefused()
+    {
+        return _sessionsRefused.get();
+    }
+
+    /**
+     * @param deferredSessions whether new sessions are kept in the local session cache until they are used
+     * by a second request
+     * @see #setMaterializeOnAttributeChange(boolean)
+     */
+    public void setDeferredSessions(boolean deferredSessions)
+    {
+        _deferredSessions = deferredSessions;
+    }
+
+    public boolean isDeferredSessions()
+    {
+        return _deferredSessions;
+    }
+
+    /**
+     * @param materializeOnAttributeChange whether local sessions are materialized at the end of the first
+     * request that changes their attributes
+     * @see #setDeferredSessions(boolean)
+     */
+    public void setMaterializeOnAttributeChange(boolean materializeOnAttributeChange)
+    {
+        _materializeOnAttributeChange = materializeOnAttributeChange;
+    }
+
+    public boolean isMaterializeOnAttributeChange()
+    {
+        return _materializeOnAttributeChange;
+    }
+
+    /**
+     * @return the number of sessions that only exist in the local session cache
+     */
+    public int getLocalSessions()
+    {
+        return _localSessions.size();
+    }
+
+    /**
+     * Publishes the given local session and its attributes to the distributed shared maps.
+     * The session lock is held when this method returns, as it is for new sessions that are not deferred,
+     * and it is released by {@link #exit(Request)}.
+     *
+     * @param session the local session to materialize
+     * @see #setDeferredSessions(boolean)
+     */
+    protected void materialize(Session session)
+    {
+        /**
+         * SESSION LOCKING
+         * If the request already holds the session lock, because the session is the requested one,
+         * the nesting acquired here is released before returning.
+         */
+        String clusterId = session.getClusterId();
+        boolean locked = Lock.getLocks().containsKey(newLockId(clusterId));
+        boolean materialized = false;
+        enter(clusterId);
+        try
+        {
+            SessionData sessionData = session.getSessionData();
+            synchronized (session)
+            {
+                // Materialized by another thread while this one was waiting for the lock
+                if (session.isMaterialized()) return;
+                // The attributes published so far are in the local map, with the same stored form
+                if (session._hydrated != null)
+                {
+                    for (Map.Entry<String, Object> entry : session._hydrated.entrySet())
+                        _sessionAttributes.put(attributeKey(clusterId, entry.getKey()), entry.getValue());
+                }
+                long maxIdleMs = session.getMaxIdlePeriodMs();
+                _sessionExpirations.put(clusterId, maxIdleMs > 0 ? System.currentTimeMillis() + maxIdleMs : -1L);
+                _sessionDatas.put(clusterId, sessionData);
+                session._materialized = true;
+            }
+            // Refer to method {@link #scavenge()}: the session must be either local or in the expirations map
+            synchronized (_sessions)
+            {
+                _localSessions.remove(clusterId);
+            }
+            _sessionsCreated.incrementAndGet();
+            String indexKey = sessionData.getIndexKey();
+            if (indexKey != null) index(indexKey, clusterId, true);
+            getIdManager().addSession(session);
+            materialized = true;
+            Log.debug("Materialized session {} with id {}", session, clusterId);
+        }
+        finally
+        {
+            // Keep the lock only if it has been acquired to materialize the session
+            if (locked || !materialized) exit(clusterId);
+        }
+    }
+
+    /**
+     * Sets the precision of the access times in the distributed shared session data. When positive, the access
+     * times are written behind, in batches, at most once per precision period per session.
+     *
+     * @param ms the precision of the shared access times, or a negative value to update them from the requests
+     * once per scavenge period
+     */
+    public void setAccessTimePrecisionMs(long ms)
+    {
+        _accessTimePrecisionMs = ms;
+        scheduleAccessTimesWriter();
+    }
+
+    public long getAccessTimePrecisionMs()
+    {
+        return _accessTimePrecisionMs;
+    }
+
+    /**
+     * Records the access times of the given session, to be written by {@link #writeAccessTimes()}.
+     *
+     * @param clusterId the session id
+     * @param previousAccessTime the previous access time
+     * @param time the time of the last access
+     */
+    private void recordAccessTimes(String clusterId, long previousAccessTime, long time)
+    {
+        _pendingAccessTimes.put(clusterId, new long[]{previousAccessTime, time});
+    }
+
+    /**
+     * Writes the recorded access times of all the sessions to the distributed shared maps,
+     * in a single transaction.
+     */
+    private void writeAccessTimes()
+    {
+        if (_pendingAccessTimes.isEmpty()) return;
+
+        // A lock specific to this node, since the sessions are only written, and never
+        // read, under it; the session lock is not needed to update the access times
+        String nodeName = nodeName();
+        String lockId = "accessTimes:" + (nodeName == null ? "" : nodeName + ":") + _contextPath + ":" + _virtualHost;
+        int count = 0;
+        Lock.lock(lockId);
+        try
+        {
+            for (Iterator<Map.Entry<String, long[]>> entries = _pendingAccessTimes.entrySet().iterator(); entries.hasNext();)
+            {
+                Map.Entry<String, long[]> entry = entries.next();
+                String clusterId = entry.getKey();
+                long[] times = entry.getValue();
+                // Remove only if not recorded again in the meantime
+                _pendingAccessTimes.remove(clusterId, times);
+
+                Session session = _sessions.get(clusterId);
+                if (session == null || !session.isMaterialized()) continue;
+                SessionData sessionData = session.getSessionData();
+                if (sessionData.isPassivated()) continue;
+
+                // Other nodes may have written more recent times
+                if (times[0] > sessionData.getPreviousAccessTime()) sessionData.setPreviousAccessTime(times[0]);
+                long maxIdleMs = session.getMaxIdlePeriodMs();
+                if (maxIdleMs > 0 && times[1] + maxIdleMs > getExpirationTime(clusterId))
+                    setExpirationTime(clusterId, times[1] + maxIdleMs);
+                ++count;
+            }
+        }
+        finally
+        {
+            Lock.unlock(lockId);
+        }
+        Log.debug("Written access times of {} sessions", count);
+    }
+
+    /**
+     * Removes the expiration entry of the given session if the session does not exist anymore; such entry
+     * may be left when the access times written behind race with the removal of the session on another node.
+     *
+     * @param clusterId the session id
+     */
+    private void removeOrphanExpiration(String clusterId)
+    {
+        if (!tryEnter(clusterId)) return;
+        try
+        {
+            synchronized (_sessions)
+            {
+                if (findSession(clusterId) == null && _sessionExpirations.remove(clusterId) != null)
+                {
+                    _sessionsRemoved.incrementAndGet();
+                    Log.debug("Removed orphan expiration entry of session {}", clusterId);
+                }
+            }
+        }
+        finally
+        {
+            exit(clusterId);
+        }
+    }
+
+    /**
+     * @param maxLocalSessions the maximum number of sessions cached by this node, or a negative value for no limit
+     */
+    public void setMaxLocalSessions(int maxLocalSessions)
+    {
+        _maxLocalSessions = maxLocalSessions;
+    }
+
+    public int getMaxLocalSessions()
+    {
+        return _maxLocalSessions;
+    }
+
+    /**
+     * @param bytes the capacity of the off-heap store for sessions evicted from the local cache, or 0 to disable it
+     * @see #setMaxLocalSessions(int)
+     */
+    public void setOffHeapCapacity(long bytes)
+    {
+        if (isStarted()) throw new IllegalStateException("Cannot change the off-heap capacity after start");
+        _offHeapCapacity = bytes;
+    }
+
+    public long getOffHeapCapacity()
+    {
+        return _offHeapCapacity;
+    }
+
+    /**
+     * @param bytes the size of each off-heap memory slab, which is also the maximum size of a serialized session
+     */
+    public void setOffHeapSlabSize(int bytes)
+    {
+        if (isStarted()) throw new IllegalStateException("Cannot change the off-heap slab size after start");
+        _offHeapSlabSize = bytes;
+    }
+
+    public int getOffHeapSlabSize()
+    {
+        return _offHeapSlabSize;
+    }
+
+    /**
+     * @param snapshotFile the path of the file where the sessions in the local cache are written
+     * when this session manager stops, and read back when it starts, or null to disable snapshots
+     */
+    public void setSnapshotFile(String snapshotFile)
+    {
+        _snapshotFile = snapshotFile;
+    }
+
+    public String getSnapshotFile()
+    {
+        return _snapshotFile;
+    }
+
+    /**
+     * @param passivationStore the store for idle sessions passivated out of the distributed shared session
+     * data map, or null to disable passivation
+     * @see #setPassivationIdleMs(long)
+     */
+    public void setPassivationStore(PassivationStore passivationStore)
+    {
+        _passivationStore = passivationStore;
+    }
+
+    public PassivationStore getPassivationStore()
+    {
+        return _passivationStore;
+    }
+
+    /**
+     * @param ms the idle time after which sessions are passivated, or a negative value to disable passivation
+     * @see #setPassivationStore(PassivationStore)
+     */
+    public void setPassivationIdleMs(long ms)
+    {
+        _passivationIdleMs = ms;
+    }
+
+    public long getPassivationIdleMs()
+    {
+        return _passivationIdleMs;
+    }
+
+    /**
+     * @param prefix the prefix of the names of the attributes that are never replicated, or null to only
+     * consider values implementing {@link NodeLocalAttribute}
+     */
+    public void setNodeLocalAttributePrefix(String prefix)
+    {
+        _nodeLocalAttributePrefix = prefix;
+    }
+
+    public String getNodeLocalAttributePrefix()
+    {
+        return _nodeLocalAttributePrefix;
+    }
+
+    /**
+     * @param name the attribute name
+     * @param value the attribute value
+     * @return whether the given attribute must be kept only in the node-local session
+     * @see #setNodeLocalAttributePrefix(String)
+     */
+    protected boolean isNodeLocalAttribute(String name, Object value)
+    {
+        if (value instanceof NodeLocalAttribute) return true;
+        String prefix = _nodeLocalAttributePrefix;
+        return prefix != null && name.startsWith(prefix);
+    }
+
+    /**
+     * @param sizeAccounting whether to keep the estimated size of each session
+     * @see Session#getSize()
+     */
+    public void setSizeAccounting(boolean sizeAccounting)
+    {
+        _sizeAccounting = sizeAccounting;
+    }
+
+    /**
+     * @return whether the estimated size of each session is kept, which is always the case
+     * with serialized attributes or when a session size limit is set
+     */
+    public boolean isSizeAccounting()
+    {
+        return _sizeAccounting || _serializedAttributes || isSessionSizeLimited();
+    }
+
+    /**
+     * @param bytes the session size above which a warning is logged, or a negative value for no limit
+     */
+    public void setSessionSizeSoftLimit(long bytes)
+    {
+        _sessionSizeSoftLimit = bytes;
+    }
+
+    public long getSessionSizeSoftLimit()
+    {
+        return _sessionSizeSoftLimit;
+    }
+
+    /**
+     * @param bytes the session size above which attributes cannot be set, or a negative value for no limit
+     */
+    public void setSessionSizeHardLimit(long bytes)
+    {
+        _sessionSizeHardLimit = bytes;
+    }
+
+    public long getSessionSizeHardLimit()
+    {
+        return _sessionSizeHardLimit;
+    }
+
+    private boolean isSessionSizeLimited()
+    {
+        return _sessionSizeSoftLimit >= 0 || _sessionSizeHardLimit >= 0;
+    }
+
+    /**
+     * Returns the distribution of the sizes of the sessions cached by this node: the element
+     * at index <code>i</code> is the number of sessions smaller than <code>1024 &lt;&lt; i</code> bytes and
+     * not counted by the previous elements, and the last element is the number of the remaining sessions.
+     *
+     * @return the histogram of the session sizes
+     * @see #isSizeAccounting()
+     */
+    public int[] getSessionSizeHistogram()
+    {
+        int[] result = new int[SIZE_HISTOGRAM_BUCKETS];
+        for (Session session : localSessions())
+        {
+            long size = session.getSize();
+            int bucket = 0;
+            while (bucket < result.length - 1 && size >= 1024L << bucket)
+                ++bucket;
+            ++result[bucket];
+        }
+        return result;
+    }
+
+    /**
+     * @return the size of the largest session cached by this node
+     * @see #isSizeAccounting()
+     */
+    public long getMaxSessionSize()
+    {
+        long result = 0;
+        for (Session session : localSessions())
+            result = Math.max(result, session.getSize());
+        return result;
+    }
+
+    /**
+     * @return the total size of the sessions cached by this node
+     * @see #isSizeAccounting()
+     */
+    public long getTotalSessionSize()
+    {
+        long result = 0;
+        for (Session session : localSessions())
+            result += session.getSize();
+        return result;
+    }
+
+    private List<Session> localSessions()
+    {
+        synchronized (_sessions)
+        {
+            return new ArrayList<Session>(_sessions.values());
+        }
+    }
+
+    /**
+     * Estimates the size that the given attribute adds to the session.
+     *
+     * @param name the attribute name
+     * @param value the attribute value, in the form stored in the shared session data
+     * @return the estimated size in bytes of the attribute
+     */
+    protected int estimateAttributeSize(String name, Object value)
+    {
+        if (value instanceof byte[] && isSerializedAttributes()) return name.length() + ((byte[])value).length;
+        try
+        {
+            return name.length() + _attributeCodecs.getEncodedSize(value);
+        }
+        catch (IOException x)
+        {
+            Log.ignore(x);
+            return name.length();
+        }
+    }
+
+    /**
+     * @return the off-heap store, that exposes occupancy and hit ratio, or null if it is not enabled
+     */
+    public OffHeapSessionStore getOffHeapStore()
+    {
+        return _offHeapStore;
+    }
+
+    /**
+     * Checks whether a session with the given id exists in this context, without acquiring the session lock.
+     * The answer reflects the local session cache and the distributed shared session data as seen by this
+     * node, including passivated sessions, and may be stale if the session is being created or removed
+     * concurrently on another node.
+     *
+     * @param clusterId the session id
+     * @return whether this context has a session with the given id
+     */
+    public boolean hasSession(String clusterId)
+    {
+        // Passivated sessions are only known by their expiration entry
+        return _sessions.containsKey(clusterId) || _sessionDatas.containsKey(clusterId) ||
+                _sessionExpirations.containsKey(clusterId);
+    }
+
+    public AbstractSessionManager.Session getSession(String clusterId)
+    {
+        /**
+         * SESSION LOCKING
+         * This is an entry point for session locking.
+         * We lookup the session given the id, and if it exist we hold the lock.
+         * We unlock on end of method, since this method can be called outside
+         * an {@link #enter(String)}/{@link #exit(String)} pair.
+         */
+        enter(clusterId);
+        try
+        {
+            // Need to synchronize because we use a get-then-put that must be atomic
+            // on the local session cache
+            // Refer to method {@link #scavenge()} for an explanation of synchronization order:
+            // first on _sessions, then on _sessionExpirations.
+            synchronized (_sessions)
+            {
+                return findSession(clusterId);
+            }
+        }
+        finally
+        {
+            /**
+             * SESSION LOCKING
+             */
+            exit(clusterId);
+        }
+    }
+
+    /**
+     * Looks up many sessions at once, for example for administrative tools and batch jobs.
+     * <br />
+     * The sessions are processed in batches: the session data of the sessions of a batch that are not
+     * in the local cache is prefetched concurrently (see {@link #prefetch(Request)}), while the session
+     * locks of the batch are acquired. The locks are acquired in the order of the session ids, so that
+     * concurrent bulk lookups cannot deadlock, and are released at the end of each batch.
+     *
+     * @param clusterIds the ids of the sessions to look up
+     * @return the sessions found, keyed and ordered by session id
+     * @see #setBulkBatchSize(int)
+     */
+    public Map<String, AbstractSessionManager.Session> getSessions(Collection<String> clusterIds)
+    {
+        // Deterministic lock ordering; the lock ids only differ by the session id
+        List<String> ids = new ArrayList<String>(new TreeSet<String>(clusterIds));
+        Map<String, AbstractSessionManager.Session> result = new LinkedHashMap<String, AbstractSessionManager.Session>();
+        int batchSize = Math.max(1, getBulkBatchSize());
+        for (int from = 0; from < ids.size(); from += batchSize)
+        {
+            List<String> batch = ids.subList(from, Math.min(ids.size(), from + batchSize));
+
+            ExecutorService prefetcher = _prefetcher;
+            if (prefetcher != null)
+            {
+                for (String clusterId : batch)
+                {
+                    if (!_sessions.containsKey(clusterId)) prefetch(prefetcher, clusterId);
+                }
+            }
+
+            /**
+             * SESSION LOCKING
+             * This is an entry point for session locking.
+             * We lock all the sessions of the batch, in order.
+             */
+            int entered = 0;
+            try
+            {
+                for (String clusterId : batch)
+                {
+                    enter(clusterId);
+                    ++entered;
+                }
+
+                synchronized (_sessions)
+                {
+                    for (String clusterId : batch)
+                    {
+                        Session session = findSession(clusterId);
+                        if (session != null) result.put(clusterId, session);
+                    }
+                }
+            }
+            finally
+            {
+                /**
+                 * SESSION LOCKING
+                 */
+                for (int i = entered - 1; i >= 0; --i)
+                    exit(batch.get(i));
+            }
+            Log.debug("Bulk lookup of {} sessions, {} found so far", batch.size(), result.size());
+        }
+        return result;
+    }
+
+    /**
+     * Looks up the session with the given id in the local cache, or in the distributed
+     * shared session data. Must be called while holding the session lock and the
+     * local session cache monitor.
+     *
+     * @param clusterId the session id
+     * @return the session, or null if it does not exist
+     */
+    private Session findSession(String clusterId)
+    {
+        Session result = _sessions.get(clusterId);
+        if (result == null)
+        {
+            Log.debug("Session with id {} --> local cache miss", clusterId);
+            result = lookupSession(clusterId);
+        }
+        else
+        {
+            Log.debug("Session with id {} --> local cache hit", clusterId);
+            if (!result.isMaterialized())
+            {
+                Log.debug("Session with id {} --> local session", clusterId);
+            }
+            else if (!_sessionExpirations.containsKey(clusterId))
+            {
+                // A session is present in the local cache, but it has been expired
+                // or invalidated on another node, perform local clean up.
+                _sessions.remove(clusterId);
+                result = null;
+                Log.debug("Session with id {} --> local cache stale");
+            }
+            else if (result.getSessionData().isPassivated())
+            {
+                // A session is present in the local cache, but it has been passivated
+                // on another node, so the session data we reference is not shared anymore.
+                _sessions.remove(clusterId);
+                Log.debug("Session with id {} --> local cache passivated", clusterId);
+                result = lookupSession(clusterId);
+            }
+            else
+            {
+                result.refresh();
+            }
+        }
+        return result;
+    }
+
+    private Session lookupSession(String clusterId)
+    {
+        // Lookup the distributed shared sessionData object.
+        // This will migrate the session data to this node from the Terracotta server
+        // We have not grabbed the distributed lock associated with this session yet,
+        // so another node can migrate the session data as well. This is no problem,
+        // since just after this method returns the distributed lock will be grabbed by
+        // one node, the session data will be changed and the lock released.
+        // The second node contending for the distributed lock will then acquire it,
+        // and the session data information will be migrated lazily by Terracotta means.
+        // We are only interested in having a SessionData reference locally.
+        Log.debug("Distributed session data with id {} --> lookup", clusterId);
+        SessionData sessionData = _sessionDatas.get(clusterId);
+        if (sessionData == null)
+            sessionData = activate(clusterId);
+
+        if (sessionData == null)
+        {
+            Log.debug("Distributed session data with id {} --> not found", clusterId);
+            return null;
+        }
+
+        Log.debug("Distributed session data with id {} --> found", clusterId);
+        // Wrap the migrated session data and cache the Session object
+        Session result = new Session(clusterId, sessionData);
+        rehydrate(result);
+        _sessions.put(clusterId, result);
+        return result;
+    }
+
+    /**
+     * Moves the session data of the given idle session out of the distributed shared session data map
+     * into the passivation store, leaving the expiration entry as a tombstone.
+     * The session is skipped if its lock is held, or if requests on this node are using it, which is
+     * the case of the requests to the unlocked paths, that do not hold the session lock while handled.
+     *
+     * @param clusterId the id of the session to passivate
+     * @param now the current time
+     * @return whether the session has been passivated
+     */
+    private boolean passivate(String clusterId, long now)
+    {
+        PassivationStore passivationStore = _passivationStore;
+        if (passivationStore == null) return false;
+
+        /**
+         * SESSION LOCKING
+         * While the session lock is held, requests cannot start to use the session, so it is
+         * enough to check that no request started before is still using it.
+         */
+        if (!tryEnter(clusterId)) return false;
+        try
+        {
+            Session session = _sessions.get(clusterId);
+            if (session != null && session.isInRequest()) return false;
+            return passivate(clusterId, now, passivationStore);
+        }
+        finally
+        {
+            exit(clusterId);
+        }
+    }
+
+    private boolean passivate(String clusterId, long now, PassivationStore passivationStore)
+    {
+        SessionData sessionData = _sessionDatas.get(clusterId);
+        if (sessionData == null) return false;
+
+        // The previous access time is fetched from Terracotta, so we're sure it is up-to-date
+        long expirationTime = getExpirationTime(clusterId);
+        if (expirationTime < now || now - sessionData.getPreviousAccessTime() < getPassivationIdleMs())
+            return false;
+
+        try
+        {
+            passivationStore.store(newLockId(clusterId), sessionData.passivate(new SharedAttributes(clusterId, sessionData)));
+        }
+        catch (IOException x)
+        {
+            // Typically, non serializable attributes
+            Log.debug("Could not passivate session " + clusterId, x);
+            return false;
+        }
+
+        // Other nodes referencing the session data will notice it is not shared anymore
+        sessionData.setPassivated();
+        _sessionDatas.remove(clusterId);
+        for (String name : sessionData.getAttributeNames())
+            _sessionAttributes.remove(attributeKey(clusterId, name));
+        _sessions.remove(clusterId);
+        if (_offHeapStore != null) _offHeapStore.remove(clusterId);
+        Log.debug("Passivated session with id {}, expiration time {}", clusterId, expirationTime);
+        return true;
+    }
+
+    /**
+     * Moves the session data of the given session from the passivation store back into the distributed
+     * shared session data map. Must be called while holding the session lock.
+     *
+     * @param clusterId the id of the session to activate
+     * @return the activated session data, or null if the session is not passivated
+     */
+    private SessionData activate(String clusterId)
+    {
+        PassivationStore passivationStore = _passivationStore;
+        if (passivationStore == null) return null;
+
+        // The expiration entry is the tombstone left by the passivation
+        if (!_sessionExpirations.containsKey(clusterId)) return null;
+
+        String key = newLockId(clusterId);
+        try
+        {
+            byte[] data = passivationStore.load(key);
+            if (data == null) return null;
+
+            Map<String, Object> values = new HashMap<String, Object>();
+            SessionData result = SessionData.activate(data, values);
+            for (Map.Entry<String, Object> entry : values.entrySet())
+                _sessionAttributes.put(attributeKey(clusterId, entry.getKey()), entry.getValue());
+            _sessionDatas.put(clusterId, result);
+            passivationStore.remove(key);
+            Log.debug("Activated session with id {}", clusterId);
+            return result;
+        }
+        catch (Exception x)
+        {
+            Log.warn("Could not activate session " + clusterId, x);
+            return null;
+        }
+    }
+
+    /**
+     * Restores the attributes of the given session from the off-heap store or from the session snapshot,
+     * if the session has been evicted from the local cache or was cached before a restart, and its data
+     * has not changed since.
+     *
+     * @param session the session just created from the distributed session data
+     */
+    private void rehydrate(Session session)
+    {
+        String clusterId = session.getClusterId();
+        SessionData sessionData = session.getSessionData();
+        long version = sessionData.getVersion();
+
+        byte[] data = null;
+        OffHeapSessionStore offHeapStore = _offHeapStore;
+        if (offHeapStore != null)
+            data = offHeapStore.get(clusterId, version);
+
+        SessionSnapshot snapshot = _snapshot;
+        if (snapshot != null)
+        {
+            byte[] snapshotData = snapshot.take(clusterId, version);
+            long expirationTime = getExpirationTime(clusterId);
+            if (data == null && (expirationTime < 0 || expirationTime > System.currentTimeMillis()))
+                data = snapshotData;
+            if (snapshot.getSize() == 0)
+                _snapshot = null;
+        }
+
+        if (data == null) return;
+
+        try
+        {
+            session.hydrate((Map<String, Object>)deserialize(data), version);
+            Log.debug("Session with id {} --> restored from serialized form, version {}", clusterId, version);
+        }
+        catch (Exception x)
+        {
+            Log.warn("Could not restore session " + clusterId + " from serialized form", x);
+        }
+    }
+
+    /**
+     * Stores the sessions evicted from the local cache into the off-heap store, if any.
+     * Must not be called while holding the monitor of the local session cache.
+     */
+    private void storeEvictedSessions()
+    {
+        Session session;
+        while ((session = _evictedSessions.poll()) != null)
+            evicted(session);
+    }
+
+    private void evicted(Session session)
+    {
+        String clusterId = session.getClusterId();
+        Log.debug("Session with id {} --> evicted from local cache", clusterId);
+        if (_localSessions.containsKey(clusterId))
+        {
+            evictedLocal(session);
+            return;
+        }
+        OffHeapSessionStore offHeapStore = _offHeapStore;
+        if (offHeapStore == null) return;
+
+        // Sessions being used on other nodes are likely to change, do not store them
+        if (!tryEnter(clusterId)) return;
+        try
+        {
+            // Looked up again in the meantime
+            if (_sessions.containsKey(clusterId)) return;
+            SessionData sessionData = session.getSessionData();
+            // Read the version before the attributes: if they are modified concurrently,
+            // the version stored will be older than the current one and the entry will never be used.
+            long version = sessionData.getVersion();
+            byte[] data = serializeAttributes(session);
+            if (data != null)
+                offHeapStore.put(clusterId, version, getExpirationTime(clusterId), data);
+        }
+        finally
+        {
+            exit(clusterId);
+        }
+    }
+
+    /**
+     * Local sessions only exist in the local session cache, so once evicted they are gone: they are timed out,
+     * so that session listeners are notified and attribute values unbound, unless they are in use, in which
+     * case they are materialized instead.
+     *
+     * @param session the local session evicted from the local session cache
+     */
+    private void evictedLocal(Session session)
+    {
+        String clusterId = session.getClusterId();
+        // Nobody else uses the lock of a local session
+        if (!tryEnter(clusterId)) return;
+        try
+        {
+            if (session.isInRequest())
+            {
+                if (!session.isMaterialized()) materialize(session);
+            }
+            else if (_localSessions.remove(clusterId) != null)
+            {
+                Log.debug("Timing out evicted local session {}", clusterId);
+                session.timeout();
+            }
+        }
+        finally
+        {
+            exit(clusterId);
+        }
+    }
+
+    /**
+     * @param session the session whose attributes must be serialized
+     * @return the serialized attributes of the given session, or null if they cannot be serialized
+     */
+    private byte[] serializeAttributes(Session session)
+    {
+        try
+        {
+            return serialize(new HashMap<String, Object>(session.sharedAttributes()));
+        }
+        catch (IOException x)
+        {
+            // Typically, non serializable attributes
+            Log.debug("Could not serialize session " + session.getClusterId(), x);
+        }
+        catch (RuntimeException x)
+        {
+            // Concurrent modification of the attributes, just skip the session
+            Log.ignore(x);
+        }
+        return null;
+    }
+
+    /**
+     * Converts an attribute value to the form stored in the shared session data
+     * when attributes are stored in serialized form, using the {@link AttributeCodecs}.
+     *
+     * @param name the attribute name
+     * @param value the attribute value
+     * @return the serialized attribute value
+     * @throws IOException if the value cannot be serialized
+     * @see #setSerializedAttributes(boolean)
+     */
+    protected byte[] encodeAttribute(String name, Object value) throws IOException
+    {
+        return _attributeCodecs.encode(value);
+    }
+
+    /**
+     * Converts an attribute value from the form stored in the shared session data
+     * when attributes are stored in serialized form, using the {@link AttributeCodecs}.
+     *
+     * @param name the attribute name
+     * @param data the serialized attribute value
+     * @return the attribute value
+     * @throws IOException if the value cannot be deserialized
+     * @throws ClassNotFoundException if the class of the value cannot be found
+     * @see #setSerializedAttributes(boolean)
+     */
+    protected Object decodeAttribute(String name, byte[] data) throws IOException, ClassNotFoundException
+    {
+        return _attributeCodecs.decode(data);
+    }
+
+    protected byte[] serialize(Object object) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeObject(object);
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    protected Object deserialize(byte[] data) throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream input = new ClassLoadingObjectInputStream(new ByteArrayInputStream(data));
+        try
+        {
+            return input.readObject();
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    protected String newLockId(String clusterId)
+    {
+        StringBuilder builder = new StringBuilder(clusterId);
+        builder.append(":").append(_contextPath);
+        builder.append(":").append(_virtualHost);
+        return builder.toString();
+    }
+
+    // TODO: This method is not needed, only used for testing
+    public Map getSessionMap()
+    {
+        return Collections.unmodifiableMap(_sessions);
+    }
+
+    // TODO: rename to getSessionsCount()
+    // TODO: also, not used if not by superclass for unused statistics data
+    public int getSessions()
+    {
+        return _sessions.size();
+    }
+
+    /**
+     * Makes room for a new session if the maximum number of sessions has been reached, evicting the
+     * least recently used sessions of the local cache that are not in use.
+     *
+     * @throws IllegalStateException if there is no room for a new session
+     * @see #setMaxSessions(int)
+     */
+    private void reserveSession()
+    {
+        int maxSessions = getMaxSessions();
+        if (maxSessions < 0) return;
+        int excess = _sessionExpirations.size() - maxSessions + 1;
+        if (excess <= 0) return;
+
+        int evicted = 0;
+        if (isEvictOnMaxSessions())
+        {
+            // The local cache iterates from the least to the most recently used session,
+            // and iterating does not change the access order
+            List<Session> candidates = new ArrayList<Session>(excess);
+            synchronized (_sessions)
+            {
+                for (Session session : _sessions.values())
+                {
+                    if (candidates.size() == excess) break;
+                    if (session.isMaterialized() && !session.isInRequest()) candidates.add(session);
+                }
+            }
+
+            for (Session candidate : candidates)
+            {
+                String clusterId = candidate.getClusterId();
+                // Skip the sessions that are being used on other nodes
+                if (!tryEnter(clusterId)) continue;
+                try
+                {
+                    if (candidate.isValid() && !candidate.isInRequest())
+                    {
+                        Log.debug("Evicting session {} to stay within {} sessions", clusterId, maxSessions);
+                        candidate.invalidate();
+                        _sessionsEvicted.incrementAndGet();
+                        ++evicted;
+                    }
+                }
+                finally
+                {
+                    exit(clusterId);
+                }
+            }
+        }
+
+        if (evicted < excess)
+        {
+            _sessionsRefused.incrementAndGet();
+            throw new IllegalStateException("Maximum number of sessions " + maxSessions + " reached");
+        }
+    }
+
+    protected Session newSession(HttpServletRequest request)
+    {
+        /**
+         * SESSION LOCKING
+         * This is an entry point for session locking.
+         * We arrive here when we have to create a new
+         * session, for a request.getSession(true) call.
+         */
+        reserveSession();
+        Session result = new Session(request);
+        // Local sessions are locked when they are materialized
+        if (!result.isMaterialized()) return result;
+
+        String requestedSessionId = request.getRequestedSessionId();
+        if (requestedSessionId == null)
+        {
+            // Here the user requested a fresh new session, lock it.
+            enter(result.getClusterId());
+        }
+        else
+        {
+            if (result.getClusterId().equals(getIdManager().getClusterId(requestedSessionId)))
             {
                 // Here we have a cross context dispatch where the same session id
                 // is used for two different sessions; we do not lock because the lock
@@ -470,6 +2171,10 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
 
             // Detect the candidates that may have expired already, checking the estimated expiration time.
             Set<String> candidates = new HashSet<String>();
+            // Detect the candidates that may be idle, estimating the last access time from the expiration time.
+            Set<String> idleCandidates = new HashSet<String>();
+            boolean passivation = _passivationStore != null && getPassivationIdleMs() >= 0 && getMaxInactiveInterval() > 0;
+            long idleExpirationTime = now - getPassivationIdleMs() + 1000L * getMaxInactiveInterval();
             String lockId = "scavenge:" + _contextPath + ":" + _virtualHost;
             Lock.lock(lockId);
             try
@@ -477,127 +2182,597 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
                 /**
                  * Synchronize in order, to avoid deadlocks with method {@link #getSession(String)}.
                  * In that method, we first synchronize on _session, then we call _sessionExpirations.containsKey(),
-                 * which is synchronized by virtue of being a Collection.synchronizedMap.
+                 * which synchronizes on the shard by virtue of being a Hashtable.
                  * Here we must synchronize in the same order to avoid deadlock.
                  */
                 synchronized (_sessions)
                 {
-                    synchronized (_sessionExpirations)
+                    // We do a best effort here, and leave possible imprecisions to the next scavenge
+                    Map<String, Long> expirations = _sessionExpirations.snapshot();
+                    for (Map.Entry<String, Long> entry : expirations.entrySet())
+                    {
+                        String sessionId = entry.getKey();
+                        long expirationTime = entry.getValue();
+                        Log.debug("Estimated expiration time {} for session {}", expirationTime, sessionId);
+                        if (expirationTime > 0 && expirationTime < now) candidates.add(sessionId);
+                        else if (passivation && expirationTime > 0 && expirationTime < idleExpirationTime) idleCandidates.add(sessionId);
+                    }
+
+                    Set<String> retained = new HashSet<String>(expirations.keySet());
+                    retained.addAll(_localSessions.keySet());
+                    _sessions.keySet().retainAll(retained);
+                }
+            }
+            finally
+            {
+                Lock.unlock(lockId);
+            }
+            Log.debug("Scavenging detected {} candidate sessions to expire", candidates.size());
+
+            // Sessions that are in use are skipped, they are not idle
+            for (String sessionId : idleCandidates)
+                passivate(sessionId, now);
+
+            // Local sessions are not in the expirations map, and are not locked
+            for (Session session : _localSessions.values())
+            {
+                if (session.isIdle(now))
+                {
+                    Log.debug("Scavenging expired local session {}", session.getClusterId());
+                    session.timeout();
+                }
+            }
+
+            if (_offHeapStore != null)
+            {
+                int purged = _offHeapStore.purge(now);
+                Log.debug("Scavenging purged {} sessions from the off-heap store", purged);
+            }
+
+            // Now validate that the candidates that do expire are really expired,
+            // grabbing the session lock for each candidate
+            for (String sessionId : candidates)
+            {
+                Session candidate = (Session)getSession(sessionId);
+                if (candidate == null)
+                {
+                    removeOrphanExpiration(sessionId);
+                    continue;
+                }
+                
+                // Here we grab the lock to avoid anyone else interfering
+                boolean entered = tryEnter(sessionId);
+                if (entered)
+                {
+                    try
                     {
-                        // Do not use iterators that throw ConcurrentModificationException
-                        // We do a best effort here, and leave possible imprecisions to the next scavenge
-                        Enumeration<String> keys = _sessionExpirations.keys();
-                        while (keys.hasMoreElements())
+                        long maxInactiveTime = candidate.getMaxIdlePeriodMs();
+                        // Exclude sessions that never expire
+                        if (maxInactiveTime > 0)
                         {
-                            String sessionId = keys.nextElement();
-                            MutableLong value = _sessionExpirations.get(sessionId);
-                            if (value != null)
+                            // The lastAccessedTime is fetched from Terracotta, so we're sure it is up-to-date.
+                            long lastAccessedTime = candidate.getLastAccessedTime();
+                            // Since we write the shared lastAccessedTime every scavenge period, and the access
+                            // times written behind lag by up to twice their precision, take that in account
+                            // before considering the session expired
+                            long expirationTime = lastAccessedTime + maxInactiveTime + getScavengePeriodMs() + 2 * Math.max(0L, getAccessTimePrecisionMs());
+                            if (expirationTime < now)
+                            {
+                                Log.debug("Scavenging expired session {}, expirationTime {}", candidate.getClusterId(), expirationTime);
+                                // Calling timeout() result in calling removeSession(), that will clean the data structures
+                                candidate.timeout();
+                                _sessionsTimedOut.incrementAndGet();
+                            }
+                            else
                             {
-                                long expirationTime = value.value;
-                                Log.debug("Estimated expiration time {} for session {}", expirationTime, sessionId);
-                                if (expirationTime > 0 && expirationTime < now) candidates.add(sessionId);
+                                Log.debug("Scavenging skipping candidate session {}, expirationTime {}", candidate.getClusterId(), expirationTime);
                             }
                         }
+                    }
+                    finally
+                    {
+                        exit(sessionId);
+                    }
+                }
+            }
+        }
+        catch (Throwable x)
+        {
+            // Must avoid at all costs that the scavenge thread exits, so here we catch and log 
+            if(x instanceof ThreadDeath)
+                throw (ThreadDeath)x;
+            Log.warn("Problem scavenging sessions", x);
+        }
+        finally
+        {
+            thread.setContextClassLoader(old_loader);
+        }
+    }
+
+    private String canonicalize(String contextPath)
+    {
+        if (contextPath == null) return "";
+        return contextPath.replace('/', '_').replace('.', '_').replace('\\', '_');
+    }
+
+    private String virtualHostFrom(ContextHandler.Context context)
+    {
+        String result = "0.0.0.0";
+        if (context == null) return result;
+
+        String[] vhosts = context.getContextHandler().getVirtualHosts();
+        if (vhosts == null || vhosts.length == 0 || vhosts[0] == null) return result;
+
+        return vhosts[0];
+    }
+
+    /**
+     * Sets the name of the attribute whose value indexes the sessions, for example the attribute that holds
+     * the authenticated user. The index key of a session is the name of the attribute value if it is a
+     * {@link Principal}, or its string representation otherwise. The indexed attribute must be changed via
+     * {@link Session#setAttribute(String, Object)} or {@link Session#removeAttribute(String)}, and all nodes
+     * must use the same index attribute.
+     *
+     * @param name the name of the indexed attribute, or null to disable the session index
+     * @see #getSessionIds(String)
+     */
+    public void setIndexAttribute(String name)
+    {
+        if (isStarted()) throw new IllegalStateException("Cannot change the index attribute after start");
+        _indexAttribute = name;
+    }
+
+    public String getIndexAttribute()
+    {
+        return _indexAttribute;
+    }
+
+    /**
+     * @param value the value of the indexed attribute
+     * @return the index key for the given value, or null if the session must not be indexed
+     */
+    protected String indexKey(Object value)
+    {
+        if (value == null) return null;
+        if (value instanceof Principal) return ((Principal)value).getName();
+        return value.toString();
+    }
+
+    /**
+     * @param key the index key, for example the name of a user
+     * @return the ids of the sessions whose indexed attribute has the given key
+     * @throws IllegalStateException if no index attribute is set
+     * @see #setIndexAttribute(String)
+     */
+    public Set<String> getSessionIds(String key)
+    {
+        if (_sessionIndex == null) throw new IllegalStateException("No index attribute");
+        String lockId = newIndexLockId(key);
+        Lock.lock(lockId);
+        try
+        {
+            return parseIndexEntry(_sessionIndex.get(key));
+        }
+        finally
+        {
+            Lock.unlock(lockId);
+        }
+    }
+
+    /**
+     * Invalidates all the sessions whose indexed attribute has the given key, for example when the password
+     * of a user changes. Only the session data of those sessions is migrated to this node.
+     *
+     * @param key the index key
+     * @return the number of sessions invalidated
+     * @see #getSessionIds(String)
+     */
+    public int invalidateSessions(String key)
+    {
+        int result = 0;
+        for (String clusterId : getSessionIds(key))
+        {
+            AbstractSessionManager.Session session = getSession(clusterId);
+            if (session != null)
+            {
+                session.invalidate();
+                ++result;
+            }
+        }
+        Log.debug("Invalidated {} sessions with index key {}", result, key);
+        return result;
+    }
+
+    /**
+     * Adds or removes the given session id from the index entry of the given key.
+     *
+     * @param key the index key
+     * @param clusterId the session id
+     * @param add whether to add or remove the session id
+     */
+    private void index(String key, String clusterId, boolean add)
+    {
+        if (_sessionIndex == null) return;
+        String lockId = newIndexLockId(key);
+        Lock.lock(lockId);
+        try
+        {
+            Set<String> clusterIds = parseIndexEntry(_sessionIndex.get(key));
+            boolean changed = add ? clusterIds.add(clusterId) : clusterIds.remove(clusterId);
+            if (!changed) return;
+            if (clusterIds.isEmpty())
+            {
+                _sessionIndex.remove(key);
+            }
+            else
+            {
+                StringBuilder entry = new StringBuilder();
+                for (String id : clusterIds)
+                {
+                    if (entry.length() > 0) entry.append(' ');
+                    entry.append(id);
+                }
+                // Strings are literals in Terracotta, so the entry does not add clustered objects
+                _sessionIndex.put(key, entry.toString());
+            }
+        }
+        finally
+        {
+            Lock.unlock(lockId);
+        }
+    }
+
+    private Set<String> parseIndexEntry(String entry)
+    {
+        Set<String> result = new LinkedHashSet<String>();
+        if (entry != null)
+        {
+            // Session ids never contain a space
+            for (String clusterId : entry.split(" "))
+                result.add(clusterId);
+        }
+        return result;
+    }
+
+    private String newIndexLockId(String key)
+    {
+        return "sessionIndex:" + key + ":" + _contextPath + ":" + _virtualHost;
+    }
+
+    /**
+     * @param clusterId the session id
+     * @param name the attribute name
+     * @return the key of the given attribute in the distributed shared attribute values map
+     */
+    private static String attributeKey(String clusterId, String name)
+    {
+        // Session ids never contain a colon
+        return clusterId + ":" + name;
+    }
+
+    /**
+     * Publishes the statistics counters of this node to the distributed shared statistics map.
+     */
+    private void publishStatistics()
+    {
+        Hashtable<String, Long> statistics = _statistics;
+        String nodeName = restoreStatistics();
+        if (statistics == null || nodeName == null) return;
+
+        // Only this node writes its entries, so the lock is not contended
+        String lockId = "sessionStatistics:" + nodeName + ":" + _contextPath + ":" + _virtualHost;
+        Lock.lock(lockId);
+        try
+        {
+            statistics.put(nodeName + ":created", _sessionsCreated.get());
+            statistics.put(nodeName + ":removed", _sessionsRemoved.get());
+            statistics.put(nodeName + ":timedOut", _sessionsTimedOut.get());
+        }
+        finally
+        {
+            Lock.unlock(lockId);
+        }
+    }
+
+    /**
+     * Resumes the counters published by this node before this session manager was restarted,
+     * the first time the node name is known.
+     *
+     * @return the node name, or null if it is not known yet
+     */
+    private synchronized String restoreStatistics()
+    {
+        String nodeName = nodeName();
+        if (nodeName == null || nodeName.equals(_statisticsNodeName)) return nodeName;
+
+        if (_statisticsNodeName != null)
+        {
+            // The node name changed, the counters published under the previous name are still counted
+            _sessionsCreated.set(0);
+            _sessionsRemoved.set(0);
+            _sessionsTimedOut.set(0);
+        }
+        Hashtable<String, Long> statistics = _statistics;
+        if (statistics != null)
+        {
+            Long created = statistics.get(nodeName + ":created");
+            if (created != null) _sessionsCreated.addAndGet(created);
+            Long removed = statistics.get(nodeName + ":removed");
+            if (removed != null) _sessionsRemoved.addAndGet(removed);
+            Long timedOut = statistics.get(nodeName + ":timedOut");
+            if (timedOut != null) _sessionsTimedOut.addAndGet(timedOut);
+        }
+        _statisticsNodeName = nodeName;
+        return nodeName;
+    }
+
+    private String nodeName()
+    {
+        return getIdManager() instanceof TerracottaSessionIdManager ? ((TerracottaSessionIdManager)getIdManager()).getNodeName() : null;
+    }
+
+    /**
+     * @param counter the counter name
+     * @param local the current value of the counter on this node
+     * @return the sum of the values of the given counter on all nodes
+     */
+    private long getClusterStatistic(String counter, long local)
+    {
+        Hashtable<String, Long> statistics = _statistics;
+        if (statistics == null) return local;
+
+        String nodeName = nodeName();
+        String suffix = ":" + counter;
+        long result = local;
+        Map<String, Long> entries;
+        synchronized (statistics)
+        {
+            entries = new HashMap<String, Long>(statistics);
+        }
+        for (Map.Entry<String, Long> entry : entries.entrySet())
+        {
+            String key = entry.getKey();
+            // The counters of this node are read locally, they are more recent
+            if (key.endsWith(suffix) && !key.equals(nodeName + suffix)) result += entry.getValue();
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of sessions in the cluster for this context, including the passivated ones
+     */
+    public long getClusterSessions()
+    {
+        return getClusterSessionsCreated() - getClusterStatistic("removed", _sessionsRemoved.get());
+    }
+
+    /**
+     * @return the number of sessions created in the cluster for this context
+     */
+    public long getClusterSessionsCreated()
+    {
+        return getClusterStatistic("created", _sessionsCreated.get());
+    }
+
+    /**
+     * @return the number of sessions invalidated in the cluster for this context, excluding the timed out ones
+     */
+    public long getClusterSessionsInvalidated()
+    {
+        return getClusterStatistic("removed", _sessionsRemoved.get()) - getClusterSessionsTimedOut();
+    }
+
+    /**
+     * @return the number of sessions timed out in the cluster for this context
+     */
+    public long getClusterSessionsTimedOut()
+    {
+        return getClusterStatistic("timedOut", _sessionsTimedOut.get());
+    }
+
+    /**
+     * @return the number of attribute values read from the distributed shared attribute values map
+     */
+    public long getSharedAttributeReads()
+    {
+        return _sharedAttributeReads.get();
+    }
+
+    /**
+     * @return the estimated bytes of the attribute values read from the distributed shared attribute values map
+     * @see #isSizeAccounting()
+     */
+    public long getSharedAttributeReadBytes()
+    {
+        return _sharedAttributeReadBytes.get();
+    }
+
+    /**
+     * @return the average estimated bytes of attribute values read from the distributed shared attribute values
+     * map per request using a session
+     * @see #isSizeAccounting()
+     */
+    public double getSharedAttributeReadBytesPerRequest()
+    {
+        long requests = _sessionRequests.get();
+        return requests == 0 ? 0D : (double)getSharedAttributeReadBytes() / requests;
+    }
+
+    public void resetSharedAttributeStatistics()
+    {
+        _sharedAttributeReads.set(0);
+        _sharedAttributeReadBytes.set(0);
+        _sessionRequests.set(0);
+    }
+
+    /**
+     * A prefetch of the data of a session, see {@link TerracottaSessionManager#prefetch(Request)}.
+     */
+    private class Prefetch implements Runnable
+    {
+        private final String _clusterId;
+
+        private Prefetch(String clusterId)
+        {
+            _clusterId = clusterId;
+        }
+
+        public void run()
+        {
+            prefetch(_clusterId);
+        }
+    }
+
+    /**
+     * A view of the attributes of a session: the names come from the session data, and the values
+     * from the distributed shared attribute values map, where each value is faulted in independently.
+     * Must be accessed while holding the session lock.
+     */
+    private class SharedAttributes extends AbstractMap<String, Object>
+    {
+        private final String _clusterId;
+        private final SessionData _sessionData;
+
+        private SharedAttributes(String clusterId, SessionData sessionData)
+        {
+            _clusterId = clusterId;
+            _sessionData = sessionData;
+        }
+
+        @Override
+        public Object get(Object name)
+        {
+            if (!_sessionData.hasAttribute((String)name)) return null;
+            return _sessionAttributes.get(attributeKey(_clusterId, (String)name));
+        }
+
+        @Override
+        public boolean containsKey(Object name)
+        {
+            return _sessionData.hasAttribute((String)name);
+        }
 
-                        _sessions.keySet().retainAll(Collections.list(_sessionExpirations.keys()));
-                    }
-                }
-            }
-            finally
-            {
-                Lock.unlock(lockId);
-            }
-            Log.debug("Scavenging detected {} candidate sessions to expire", candidates.size());
+        @Override
+        public Set<String> keySet()
+        {
+            return Collections.unmodifiableSet(_sessionData.getAttributeNames());
+        }
 
-            // Now validate that the candidates that do expire are really expired,
-            // grabbing the session lock for each candidate
-            for (String sessionId : candidates)
-            {
-                Session candidate = (Session)getSession(sessionId);
-                if (candidate == null)
-                    continue;
-                
-                // Here we grab the lock to avoid anyone else interfering
-                boolean entered = tryEnter(sessionId);
-                if (entered)
-                {
-                    try
-                    {
-                        long maxInactiveTime = candidate.getMaxIdlePeriodMs();
-                        // Exclude sessions that never expire
-                        if (maxInactiveTime > 0)
-                        {
-                            // The lastAccessedTime is fetched from Terracotta, so we're sure it is up-to-date.
-                            long lastAccessedTime = candidate.getLastAccessedTime();
-                            // Since we write the shared lastAccessedTime every scavenge period,
-                            // take that in account before considering the session expired
-                            long expirationTime = lastAccessedTime + maxInactiveTime + getScavengePeriodMs();
-                            if (expirationTime < now)
-                            {
-                                Log.debug("Scavenging expired session {}, expirationTime {}", candidate.getClusterId(), expirationTime);
-                                // Calling timeout() result in calling removeSession(), that will clean the data structures
-                                candidate.timeout();
-                            }
-                            else
-                            {
-                                Log.debug("Scavenging skipping candidate session {}, expirationTime {}", candidate.getClusterId(), expirationTime);
-                            }
-                        }
-                    }
-                    finally
-                    {
-                        exit(sessionId);
-                    }
-                }
-            }
+        @Override
+        public int size()
+        {
+            return _sessionData.getAttributeNames().size();
         }
-        catch (Throwable x)
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet()
         {
-            // Must avoid at all costs that the scavenge thread exits, so here we catch and log 
-            if(x instanceof ThreadDeath)
-                throw (ThreadDeath)x;
-            Log.warn("Problem scavenging sessions", x);
+            Map<String, Object> result = new HashMap<String, Object>();
+            for (String name : keySet())
+                result.put(name, get(name));
+            return Collections.unmodifiableMap(result).entrySet();
         }
-        finally
+
+        /**
+         * @param name the attribute name
+         * @param value the attribute value
+         * @param size the estimated size of the attribute
+         */
+        private void put(String name, Object value, int size)
         {
-            thread.setContextClassLoader(old_loader);
+            _sessionData.putAttribute(name, size);
+            _sessionAttributes.put(attributeKey(_clusterId, name), value);
+        }
+
+        @Override
+        public Object remove(Object name)
+        {
+            _sessionData.removeAttribute((String)name);
+            return _sessionAttributes.remove(attributeKey(_clusterId, (String)name));
         }
     }
 
-    private String canonicalize(String contextPath)
+    /**
+     * An update of a single attribute value, see {@link Session#compareAndSet(String, Object, Object)}.
+     */
+    private interface AttributeUpdate
     {
-        if (contextPath == null) return "";
-        return contextPath.replace('/', '_').replace('.', '_').replace('\\', '_');
+        /**
+         * @param current the current value, or null if the attribute is absent
+         * @return the updated value, or the current value to leave the attribute unchanged
+         */
+        public Object update(Object current);
     }
 
-    private String virtualHostFrom(ContextHandler.Context context)
+    /**
+     * The local cache of session objects, that evicts the least recently used sessions
+     * when the number of sessions exceeds {@link #getMaxLocalSessions()}.
+     */
+    private class LocalSessionCache extends LinkedHashMap<String, Session>
     {
-        String result = "0.0.0.0";
-        if (context == null) return result;
-
-        String[] vhosts = context.getContextHandler().getVirtualHosts();
-        if (vhosts == null || vhosts.length == 0 || vhosts[0] == null) return result;
+        private LocalSessionCache()
+        {
+            super(16, 0.75f, true);
+        }
 
-        return vhosts[0];
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Session> eldest)
+        {
+            int maxLocalSessions = getMaxLocalSessions();
+            if (maxLocalSessions < 0 || size() <= maxLocalSessions) return false;
+            // Stored later, see TerracottaSessionManager#storeEvictedSessions()
+            _evictedSessions.add(eldest.getValue());
+            return true;
+        }
     }
 
-    class Session extends AbstractSessionManager.Session
+    public class Session extends AbstractSessionManager.Session
     {
         private static final long serialVersionUID = -2134521374206116367L;
 
         private final SessionData _sessionData;
         private long _lastUpdate;
+        private AttributeMap _attributeMap;
+        private SharedAttributes _sharedAttributes;
+        /**
+         * The number of requests on this node that are using this session.
+         */
+        private int _activeRequests;
+        /**
+         * The attributes restored from the off-heap store, valid as long as the session data
+         * version does not change; null when the attributes are read from the session data.
+         */
+        private Map<String, Object> _hydrated;
+        private long _hydratedVersion;
+        /**
+         * Whether the session is in the distributed shared maps, see {@link TerracottaSessionManager#materialize(Session)}.
+         */
+        private boolean _materialized = true;
+        /**
+         * Whether the session has been removed from the distributed shared maps, see {@link #detach()}.
+         */
+        private boolean _detached;
 
         protected Session(HttpServletRequest request)
         {
             super(request);
-            _sessionData = new SessionData(getClusterId(), _maxIdleMs);
+            _sessionData = new SessionData();
             _lastAccessed = _sessionData.getCreationTime();
+            // Created within a request
+            _activeRequests = 1;
+            _sessionRequests.incrementAndGet();
+            if (isDeferredSessions())
+            {
+                // Local attributes are published to the local map, that is never stale
+                _materialized = false;
+                _hydrated = new HashMap<String, Object>();
+                _hydratedVersion = _sessionData.getVersion();
+            }
         }
 
-        protected Session(SessionData sd)
+        protected Session(String clusterId, SessionData sd)
         {
-            super(sd.getCreationTime(), sd.getId());
+            super(sd.getCreationTime(), clusterId);
             _sessionData = sd;
             _lastAccessed = getLastAccessedTime();
             initValues();
@@ -630,41 +2805,399 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
                 setScavengePeriodMs(1000L * newScavengeSecs);
             }
 
-            // Update the estimated expiration time
-            if (secs < 0) {
-                this._sessionData._expiration.value = -1L;
-            } else {
-                this._sessionData._expiration.value = System.currentTimeMillis() + (1000L * secs);
+            // Update the estimated expiration time, holding the session lock
+            // also when the request to an unlocked path does not hold it
+            String clusterId = getClusterId();
+            enter(clusterId);
+            try
+            {
+                if (secs < 0) {
+                    setExpirationTime(clusterId, -1L);
+                } else {
+                    setExpirationTime(clusterId, System.currentTimeMillis() + (1000L * secs));
+                }
+            }
+            finally
+            {
+                exit(clusterId);
+            }
+        }
+
+        @Override
+        public long getLastAccessedTime()
+        {
+            if (!isValid()) throw new IllegalStateException();
+            return _sessionData.getPreviousAccessTime();
+        }
+
+        @Override
+        public long getCreationTime() throws IllegalStateException
+        {
+            if (!isValid()) throw new IllegalStateException();
+            return _sessionData.getCreationTime();
+        }
+
+        // Overridden for visibility
+        @Override
+        protected String getClusterId()
+        {
+            return super.getClusterId();
+        }
+
+        protected Map newAttributeMap()
+        {
+            // It is important to never return a new attribute map here (as other Session implementations do),
+            // but always return a view of the shared attributes map, so that a new session created on a different
+            // cluster node is immediately filled with the session data from Terracotta.
+            return attributeMap();
+        }
+
+        private AttributeMap attributeMap()
+        {
+            if (_attributeMap == null) _attributeMap = new AttributeMap();
+            return _attributeMap;
+        }
+
+        private synchronized SharedAttributes sharedAttributes()
+        {
+            if (_sharedAttributes == null) _sharedAttributes = new SharedAttributes(getClusterId(), _sessionData);
+            return _sharedAttributes;
+        }
+
+        /**
+         * Marks the given attribute as changed, so that it is published at the end of the request even if
+         * {@link #setAttribute(String, Object)} has not been called. This is needed when the attribute value
+         * is a private copy of the shared value (for example when it has been restored from serialized form)
+         * and it has been modified in place.
+         *
+         * @param name the name of the attribute
+         */
+        public synchronized void markDirty(String name)
+        {
+            attributeMap().markDirty(name);
+        }
+
+        /**
+         * Atomically adds the given delta to the numeric value of the given attribute, creating it if absent.
+         *
+         * @param name the attribute name
+         * @param delta the value to add
+         * @return the updated value
+         * @throws IllegalArgumentException if the attribute value is not a number
+         */
+        public long addAndGet(final String name, final long delta)
+        {
+            Object[] result = update(name, new AttributeUpdate()
+            {
+                public Object update(Object current)
+                {
+                    if (current != null && !(current instanceof Number))
+                        throw new IllegalArgumentException("Attribute " + name + " is not a number: " + current);
+                    return (current == null ? 0L : ((Number)current).longValue()) + delta;
+                }
+            });
+            return (Long)result[1];
+        }
+
+        /**
+         * Atomically sets the given attribute to the given value, if its current value equals the expected one.
+         *
+         * @param name the attribute name
+         * @param expect the expected value, or null if the attribute is expected to be absent
+         * @param update the new value
+         * @return whether the attribute has been set
+         */
+        public boolean compareAndSet(String name, final Object expect, final Object update)
+        {
+            if (update == null) throw new IllegalArgumentException("Cannot set attribute " + name + " to null");
+            final boolean[] matches = new boolean[1];
+            update(name, new AttributeUpdate()
+            {
+                public Object update(Object current)
+                {
+                    matches[0] = expect == null ? current == null : expect.equals(current);
+                    return matches[0] ? update : current;
+                }
+            });
+            return matches[0];
+        }
+
+        /**
+         * Atomically sets the given attribute to the given value, if it is absent.
+         *
+         * @param name the attribute name
+         * @param value the value
+         * @return the current value, or null if the attribute was absent and has been set
+         */
+        public Object putIfAbsent(String name, final Object value)
+        {
+            if (value == null) throw new IllegalArgumentException("Cannot set attribute " + name + " to null");
+            Object[] result = update(name, new AttributeUpdate()
+            {
+                public Object update(Object current)
+                {
+                    return current == null ? value : current;
+                }
+            });
+            return result[0];
+        }
+
+        /**
+         * Updates the given attribute while holding the attribute lock, and the session lock if the
+         * attribute must be created, since creating an attribute changes the shared session data.
+         * The attribute name, size and the session data version are written under the data lock,
+         * see {@link #lockData()}, since the attribute changes of a request to an unlocked path may
+         * be published concurrently. The session monitor is not held while acquiring the locks.
+         *
+         * @param name the attribute name
+         * @param update the update to apply
+         * @return the previous and the updated value
+         */
+        private Object[] update(String name, AttributeUpdate update)
+        {
+            if (!isValid()) throw new IllegalStateException();
+            if (name == null || update == null) throw new IllegalArgumentException();
+
+            // Atomic operations work on the distributed shared attribute values
+            if (!isMaterialized()) materialize(this);
+
+            String clusterId = getClusterId();
+            String attributeLockId = newLockId(clusterId) + ":" + name;
+            boolean entered = false;
+            try
+            {
+                while (true)
+                {
+                    Lock.lock(attributeLockId);
+                    try
+                    {
+                        // The attribute values map is safe to read concurrently, the attribute names are checked below
+                        Object stored = _sessionAttributes.get(attributeKey(clusterId, name));
+                        boolean exists = stored != null;
+                        boolean serialized = isSerializedAttributes();
+                        Object current = stored != null && serialized ? attributeMap().decode(name, (byte[])stored) : stored;
+                        Object updated = update.update(current);
+                        if (updated == current || updated == null) return new Object[]{current, current};
+
+                        if (!exists && !entered)
+                        {
+                            // Acquire the session lock before the attribute lock, and try again
+                            Lock.unlock(attributeLockId);
+                            enter(clusterId);
+                            entered = true;
+                            continue;
+                        }
+
+                        if (serialized) stored = encode(name, updated);
+                        else stored = updated;
+                        int size = isSizeAccounting() ? estimateAttributeSize(name, stored) : 0;
+                        long version;
+                        boolean locked = lockData();
+                        try
+                        {
+                            // The attribute may have been created or removed by the publication of concurrent changes
+                            if (_sessionData.hasAttribute(name) != exists) continue;
+                            if (isSessionSizeLimited())
+                                checkSessionSize(name, size, _sessionData.getSize() + size - _sessionData.getAttributeSize(name));
+                            sharedAttributes().put(name, stored, size);
+                            version = _sessionData.incrementVersion();
+                        }
+                        finally
+                        {
+                            unlockData(locked);
+                        }
+                        synchronized (this)
+                        {
+                            attributeMap().updated(name, updated, stored, version);
+                        }
+                        Log.debug("Session with id {} --> atomically updated attribute {}", clusterId, name);
+                        return new Object[]{current, updated};
+                    }
+                    finally
+                    {
+                        Lock.unlock(attributeLockId);
+                    }
+                }
+            }
+            finally
+            {
+                if (entered) exit(clusterId);
+            }
+        }
+
+        /**
+         * Acquires the lock that guards the attribute names and sizes and the version of the shared session
+         * data, since they are written both when the attribute changes are published, holding the session lock,
+         * and by atomic attribute operations, holding only the attribute lock.
+         * No other lock, nor the session monitor, is acquired while holding it.
+         *
+         * @return whether the lock has been acquired, false for local and removed sessions that are not shared
+         * @see #unlockData(boolean)
+         */
+        private boolean lockData()
+        {
+            if (!_materialized || _detached) return false;
+            Lock.lock("data:" + newLockId(getClusterId()));
+            return true;
+        }
+
+        /**
+         * @param locked the value returned by {@link #lockData()}
+         */
+        private void unlockData(boolean locked)
+        {
+            if (locked) Lock.unlock("data:" + newLockId(getClusterId()));
+        }
+
+        /**
+         * Checks the projected size of the session against the limits.
+         *
+         * @param name the attribute being set
+         * @param size the estimated size of the attribute
+         * @param projected the estimated size of the session once the attribute is set
+         * @throws IllegalArgumentException if the session would grow beyond the hard limit
+         */
+        private void checkSessionSize(String name, int size, long projected)
+        {
+            long hardLimit = getSessionSizeHardLimit();
+            if (hardLimit >= 0 && projected > hardLimit)
+                throw new IllegalArgumentException("Attribute " + name + " of " + size + " bytes would make session " +
+                        getClusterId() + " " + projected + " bytes large, above the limit of " + hardLimit + " bytes");
+            long softLimit = getSessionSizeSoftLimit();
+            if (softLimit >= 0 && projected > softLimit)
+                Log.warn("Attribute " + name + " of " + size + " bytes makes session " + getClusterId() + " " +
+                        projected + " bytes large, above the limit of " + softLimit + " bytes");
+        }
+
+        private byte[] encode(String name, Object value)
+        {
+            try
+            {
+                return encodeAttribute(name, value);
             }
+            catch (IOException x)
+            {
+                throw new IllegalArgumentException("Could not serialize attribute " + name + " of session " + getClusterId(), x);
+            }
+        }
+
+        /**
+         * @return the estimated size in bytes of the published attributes of this session,
+         * or 0 if size accounting is not enabled
+         * @see TerracottaSessionManager#isSizeAccounting()
+         */
+        public long getSize()
+        {
+            return _sessionData.getSize();
+        }
+
+        /**
+         * Publishes the attribute changes, then returns a new session with the given id that takes over the
+         * session data and the node-local state of this session, that is invalidated.
+         * Must be called while holding the session lock.
+         *
+         * @param clusterId the new session id
+         * @return the new session
+         * @see TerracottaSessionManager#renewSessionId(Request)
+         */
+        protected synchronized Session renew(String clusterId)
+        {
+            attributeMap().publish();
+            Session result = new Session(clusterId, _sessionData);
+            result._maxIdleMs = _maxIdleMs;
+            result._accessed = _accessed;
+            result._lastAccessed = _lastAccessed;
+            result._newSession = _newSession;
+            result._requests = _requests;
+            result._activeRequests = _activeRequests;
+            result.attributeMap()._nodeLocal.putAll(attributeMap()._nodeLocal);
+            _activeRequests = 0;
+            _invalid = true;
+            attributeMap()._nodeLocal.clear();
+            attributeMap().reset();
+            return result;
+        }
+
+        /**
+         * @return whether this session is in the distributed shared maps, or only in the local session cache
+         * @see TerracottaSessionManager#setDeferredSessions(boolean)
+         */
+        public synchronized boolean isMaterialized()
+        {
+            return _materialized;
+        }
+
+        /**
+         * Copies the attribute values into this session, so that they can still be read, and then unbound,
+         * after the session is removed from the distributed shared maps; changes are no longer published.
+         * Must be called while holding the session lock, before the shared attribute values are removed.
+         */
+        protected synchronized void detach()
+        {
+            if (_detached) return;
+            _hydrated = new HashMap<String, Object>(attributeMap().current());
+            _hydratedVersion = _sessionData.getVersion();
+            _detached = true;
+        }
+
+        private synchronized boolean hasAttributeChanges()
+        {
+            return _attributeMap != null && (!_attributeMap._dirty.isEmpty() || !_attributeMap._removed.isEmpty());
+        }
+
+        /**
+         * @param now the current time
+         * @return whether this session is not in use and has not been accessed for longer than its maximum idle period
+         */
+        private synchronized boolean isIdle(long now)
+        {
+            return !isInRequest() && _maxIdleMs > 0 && _accessed + _maxIdleMs < now;
         }
 
-        @Override
-        public long getLastAccessedTime()
+        private synchronized boolean isInRequest()
         {
-            if (!isValid()) throw new IllegalStateException();
-            return _sessionData.getPreviousAccessTime();
+            return _activeRequests > 0;
         }
 
-        @Override
-        public long getCreationTime() throws IllegalStateException
+        /**
+         * Called at the end of every request that used this session, publishes the changes of the attributes.
+         */
+        protected synchronized void endRequest()
         {
-            if (!isValid()) throw new IllegalStateException();
-            return _sessionData.getCreationTime();
+            if (_activeRequests > 0) --_activeRequests;
+            if (isValid())
+            {
+                attributeMap().publish();
+            }
+            else
+            {
+                // Invalidated, the shared session data is gone
+                attributeMap().reset();
+            }
         }
 
-        // Overridden for visibility
-        @Override
-        protected String getClusterId()
+        /**
+         * Replaces the attributes read from the session data with the given ones.
+         *
+         * @param attributes the attributes restored from the off-heap store
+         * @param version the session data version the attributes belong to
+         */
+        protected synchronized void hydrate(Map<String, Object> attributes, long version)
         {
-            return super.getClusterId();
+            _hydrated = attributes;
+            _hydratedVersion = version;
         }
 
-        protected Map newAttributeMap()
+        /**
+         * Discards the restored attributes if the session data has been changed by another node.
+         */
+        protected synchronized void refresh()
         {
-            // It is important to never return a new attribute map here (as other Session implementations do),
-            // but always return the shared attributes map, so that a new session created on a different cluster
-            // node is immediately filled with the session data from Terracotta.
-            return _sessionData.getAttributeMap();
+            if (_hydrated != null && _hydratedVersion != _sessionData.getVersion())
+            {
+                Log.debug("Session with id {} --> discarding stale restored attributes", getClusterId());
+                _hydrated = null;
+            }
         }
 
         @Override
@@ -677,7 +3210,17 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
             // access times have never been updated.
             // Therefore we need to update the distributed shared access times once in a while, no matter what.
             long previousAccessTime = getPreviousAccessTime();
-            if (time - previousAccessTime > getScavengePeriodMs())
+            long precision = getAccessTimePrecisionMs();
+            if (precision > 0)
+            {
+                // Written behind, see TerracottaSessionManager#writeAccessTimes()
+                if (time - _lastUpdate > precision)
+                {
+                    recordAccessTimes(getClusterId(), _accessed, time);
+                    _lastUpdate = time;
+                }
+            }
+            else if (time - previousAccessTime > getScavengePeriodMs())
             {
                 Log.debug("Out-of-date update of distributed access times: previous {} - current {}", previousAccessTime, time);
                 updateAccessTimes(time);
@@ -694,6 +3237,11 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
                     Log.debug("Skipping update of distributed access times: previous {} - current {}", previousAccessTime, time);
                 }
             }
+            synchronized (this)
+            {
+                ++_activeRequests;
+            }
+            _sessionRequests.incrementAndGet();
             super.access(time);
         }
 
@@ -705,7 +3253,7 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
         private void updateAccessTimes(long time)
         {
             _sessionData.setPreviousAccessTime(_accessed);
-            if (getMaxIdlePeriodMs() > 0) _sessionData.setExpirationTime(time + getMaxIdlePeriodMs());
+            if (getMaxIdlePeriodMs() > 0) setExpirationTime(getClusterId(), time + getMaxIdlePeriodMs());
             _lastUpdate = time;
         }
 
@@ -720,7 +3268,18 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
         @Override
         public void invalidate()
         {
-            super.invalidate();
+            // The session is removed from the shared maps while holding the session lock,
+            // also when the request to an unlocked path does not hold it
+            String clusterId = getClusterId();
+            enter(clusterId);
+            try
+            {
+                super.invalidate();
+            }
+            finally
+            {
+                exit(clusterId);
+            }
             Log.debug("Invalidated session {} with id {}", this, getClusterId());
         }
 
@@ -733,6 +3292,404 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
         {
             return super.getLastAccessedTime();
         }
+
+        /**
+         * The attribute map used by the session.
+         * <br />
+         * Values read during a request are cached locally until the end of the request; they come from the
+         * attributes restored from the off-heap store if present, otherwise from the shared attributes map.
+         * Values set, removed or marked dirty during a request are tracked, and only those are published to
+         * the shared attributes map at the end of the request, see {@link TerracottaSessionManager#complete(HttpSession)}.
+         * Setting a value equal to the current one is not a change, unless the current value is a private copy
+         * of the shared one (for example restored from the off-heap store), that may have been modified in place.
+         * With serialized attributes, values are serialized and sized once when they are set, and compared when
+         * published with the serialized form read during the request, so the shared form is not read again.
+         * Outside of requests, changes are published immediately.
+         * Always accessed while holding the Session monitor.
+         */
+        private class AttributeMap extends AbstractMap<String, Object>
+        {
+            private final Map<String, Object> _local = new HashMap<String, Object>();
+            private final Set<String> _copies = new HashSet<String>();
+            private final Set<String> _dirty = new HashSet<String>();
+            private final Set<String> _removed = new HashSet<String>();
+            /**
+             * The estimated sizes of the values set during the request, when session size limits or serialized
+             * attributes are enabled, and of the values being published.
+             */
+            private final Map<String, Integer> _sizes = new HashMap<String, Integer>();
+            /**
+             * The serialized form of the values set during the request, with serialized attributes.
+             */
+            private final Map<String, byte[]> _encoded = new HashMap<String, byte[]>();
+            /**
+             * The serialized form of the values read during the request, with serialized attributes.
+             */
+            private final Map<String, byte[]> _read = new HashMap<String, byte[]>();
+            /**
+             * The node-local attributes, never published.
+             */
+            private final Map<String, Object> _nodeLocal = new HashMap<String, Object>();
+
+            private Map<String, Object> current()
+            {
+                return _hydrated != null ? _hydrated : sharedAttributes();
+            }
+
+            @Override
+            public Object get(Object name)
+            {
+                if (_nodeLocal.containsKey(name)) return _nodeLocal.get(name);
+                if (_removed.contains(name)) return null;
+                if (_local.containsKey(name)) return _local.get(name);
+
+                Map<String, Object> current = current();
+                Object stored = current.get(name);
+                if (stored == null) return null;
+                if (current != _hydrated)
+                {
+                    _sharedAttributeReads.incrementAndGet();
+                    _sharedAttributeReadBytes.addAndGet(_sessionData.getAttributeSize((String)name));
+                }
+
+                boolean serialized = isSerializedAttributes();
+                Object result = serialized ? decode((String)name, (byte[])stored) : stored;
+                if (isInRequest())
+                {
+                    _local.put((String)name, result);
+                    if (serialized) _read.put((String)name, (byte[])stored);
+                    if (serialized || current == _hydrated) _copies.add((String)name);
+                }
+                return result;
+            }
+
+            Object decode(String name, byte[] data)
+            {
+                try
+                {
+                    return decodeAttribute(name, data);
+                }
+                catch (Exception x)
+                {
+                    throw new IllegalStateException("Could not deserialize attribute " + name + " of session " + getClusterId(), x);
+                }
+            }
+
+            @Override
+            public boolean containsKey(Object name)
+            {
+                return _nodeLocal.containsKey(name) || containsReplicated(name);
+            }
+
+            private boolean containsReplicated(Object name)
+            {
+                if (_removed.contains(name)) return false;
+                return _local.containsKey(name) || current().containsKey(name);
+            }
+
+            @Override
+            public int size()
+            {
+                return keySet().size();
+            }
+
+            @Override
+            public Set<String> keySet()
+            {
+                Set<String> result = new HashSet<String>(current().keySet());
+                result.addAll(_local.keySet());
+                result.removeAll(_removed);
+                result.addAll(_nodeLocal.keySet());
+                return Collections.unmodifiableSet(result);
+            }
+
+            @Override
+            public Set<Map.Entry<String, Object>> entrySet()
+            {
+                Map<String, Object> result = new HashMap<String, Object>();
+                for (String name : keySet())
+                    result.put(name, get(name));
+                return Collections.unmodifiableMap(result).entrySet();
+            }
+
+            @Override
+            public Object put(String name, Object value)
+            {
+                if (value != null && isNodeLocalAttribute(name, value))
+                {
+                    // Replaces a replicated attribute with the same name
+                    Object replicated = !_nodeLocal.containsKey(name) && containsReplicated(name) ? removeReplicated(name) : null;
+                    Object result = _nodeLocal.put(name, value);
+                    return result != null ? result : replicated;
+                }
+                // Replaces a node-local attribute with the same name
+                Object nodeLocal = _nodeLocal.remove(name);
+                Object result = putReplicated(name, value);
+                return nodeLocal != null ? nodeLocal : result;
+            }
+
+            private Object putReplicated(String name, Object value)
+            {
+                Object result = get(name);
+                // Only the very same live object is unchanged: an equal object may be a different one,
+                // that the application expects to be stored; copies are compared when published
+                boolean unchanged = result != null && value == result && !_copies.contains(name);
+                if (unchanged)
+                {
+                    // Keep the current value, that is the shared one if the attribute is not dirty
+                    Log.debug("Session with id {} --> unchanged attribute {}", getClusterId(), name);
+                }
+                else
+                {
+                    // Serialized only once, failing now rather than when the value is published at the end of the request
+                    byte[] data = isSerializedAttributes() && value != null ? encode(name, value) : null;
+                    if (data != null || (isSessionSizeLimited() && value != null))
+                    {
+                        int size = estimateAttributeSize(name, data != null ? data : value);
+                        if (isSessionSizeLimited()) checkSize(name, size);
+                        _sizes.put(name, size);
+                    }
+                    else
+                    {
+                        _sizes.remove(name);
+                    }
+                    if (data != null) _encoded.put(name, data);
+                    else _encoded.remove(name);
+                    _local.put(name, value);
+                    _copies.remove(name);
+                    _removed.remove(name);
+                    _dirty.add(name);
+                }
+                if (!isInRequest()) publish();
+                return result;
+            }
+
+            @Override
+            public Object remove(Object name)
+            {
+                if (_nodeLocal.containsKey(name)) return _nodeLocal.remove(name);
+                return removeReplicated(name);
+            }
+
+            private Object removeReplicated(Object name)
+            {
+                Object result = get(name);
+                _local.remove(name);
+                _copies.remove(name);
+                _dirty.remove(name);
+                _sizes.remove(name);
+                _encoded.remove(name);
+                if (current().containsKey(name)) _removed.add((String)name);
+                if (!isInRequest()) publish();
+                return result;
+            }
+
+            @Override
+            public void clear()
+            {
+                for (String name : keySet())
+                    remove(name);
+            }
+
+            /**
+             * Checks that setting the given attribute does not make the session larger than the limits,
+             * taking into account the other changes made during the request.
+             *
+             * @param name the attribute name
+             * @param size the estimated size of the attribute
+             * @throws IllegalArgumentException if the session would grow beyond the hard limit
+             */
+            private void checkSize(String name, int size)
+            {
+                long projected = _sessionData.getSize() + size - _sessionData.getAttributeSize(name);
+                for (String removed : _removed)
+                    projected -= _sessionData.getAttributeSize(removed);
+                for (Map.Entry<String, Integer> entry : _sizes.entrySet())
+                {
+                    if (!entry.getKey().equals(name))
+                        projected += entry.getValue() - _sessionData.getAttributeSize(entry.getKey());
+                }
+                checkSessionSize(name, size, projected);
+            }
+
+            /**
+             * Replaces the value of the given attribute cached during the request, and in the restored
+             * attributes, with a value that has been published by an atomic operation.
+             *
+             * @param name the attribute name
+             * @param value the published value
+             * @param stored the published value, in the form stored in the shared session data
+             * @param version the session data version after the publication
+             */
+            private void updated(String name, Object value, Object stored, long version)
+            {
+                if (_local.containsKey(name) && !_dirty.contains(name))
+                {
+                    _local.put(name, value);
+                    _copies.remove(name);
+                }
+                if (_read.containsKey(name)) _read.put(name, (byte[])stored);
+                // Restored attributes that were up to date stay up to date
+                if (_hydrated != null && _hydratedVersion == version - 1)
+                {
+                    _hydrated.put(name, stored);
+                    _hydratedVersion = version;
+                }
+            }
+
+            private void markDirty(String name)
+            {
+                // Serialized again when published, since it may have been modified in place after being set
+                _encoded.remove(name);
+                if (!_nodeLocal.containsKey(name) && get(name) != null) _dirty.add(name);
+                if (!isInRequest()) publish();
+            }
+
+            /**
+             * Publishes the changes to the shared attributes map, and increments the session data version.
+             * With serialized attributes, values whose serialized form did not change are not published.
+             *
+             * @throws IllegalStateException if some values cannot be serialized; the other changes are published
+             */
+            private void publish()
+            {
+                String indexAttribute = getIndexAttribute();
+                if (indexAttribute != null && (_dirty.contains(indexAttribute) || _removed.contains(indexAttribute)))
+                    reindex(_dirty.contains(indexAttribute) ? indexKey(_local.get(indexAttribute)) : null);
+
+                IOException failure = null;
+                List<String> failed = null;
+                if (!_dirty.isEmpty() || !_removed.isEmpty())
+                {
+                    // Local and removed sessions publish only to the local map
+                    SharedAttributes shared = _materialized && !_detached ? sharedAttributes() : null;
+                    boolean sizeAccounting = isSizeAccounting();
+                    boolean serialized = isSerializedAttributes();
+                    // The values are serialized and sized before acquiring the data lock
+                    Map<String, Object> values = new HashMap<String, Object>();
+                    for (String name : _dirty)
+                    {
+                        Object stored = _local.get(name);
+                        Integer size = null;
+                        if (serialized)
+                        {
+                            byte[] data = _encoded.get(name);
+                            if (data != null)
+                            {
+                                size = _sizes.get(name);
+                            }
+                            else
+                            {
+                                try
+                                {
+                                    data = encodeAttribute(name, stored);
+                                }
+                                catch (IOException x)
+                                {
+                                    // Modified in place after being set, reported once the other changes are published
+                                    if (failed == null) failed = new ArrayList<String>();
+                                    failed.add(name);
+                                    if (failure == null) failure = x;
+                                    continue;
+                                }
+                            }
+                            byte[] previous = _read.get(name);
+                            if (previous != null && Arrays.equals(data, previous))
+                            {
+                                Log.debug("Session with id {} --> unchanged serialized attribute {}", getClusterId(), name);
+                                continue;
+                            }
+                            stored = data;
+                        }
+                        // Values marked dirty, or set without serialization, may have been modified in place
+                        // after being set, and must be sized again
+                        if (size == null) size = sizeAccounting ? estimateAttributeSize(name, stored) : 0;
+                        _sizes.put(name, size);
+                        values.put(name, stored);
+                    }
+
+                    int changes = _removed.size() + values.size();
+                    if (changes > 0)
+                    {
+                        long version;
+                        long size;
+                        boolean locked = lockData();
+                        try
+                        {
+                            for (String name : _removed)
+                            {
+                                if (shared != null) shared.remove(name);
+                                else _sessionData.removeAttribute(name);
+                            }
+                            for (Map.Entry<String, Object> entry : values.entrySet())
+                            {
+                                String name = entry.getKey();
+                                if (shared != null) shared.put(name, entry.getValue(), _sizes.get(name));
+                                else _sessionData.putAttribute(name, _sizes.get(name));
+                            }
+                            version = _sessionData.incrementVersion();
+                            size = _sessionData.getSize();
+                        }
+                        finally
+                        {
+                            unlockData(locked);
+                        }
+                        Log.debug("Session with id {} --> published {} attributes", getClusterId(), changes);
+                        if (_hydrated != null)
+                        {
+                            for (String name : _removed)
+                                _hydrated.remove(name);
+                            _hydrated.putAll(values);
+                            _hydratedVersion = version;
+                        }
+                        if (serialized)
+                        {
+                            _read.keySet().removeAll(_removed);
+                            for (Map.Entry<String, Object> entry : values.entrySet())
+                                _read.put(entry.getKey(), (byte[])entry.getValue());
+                        }
+                        long hardLimit = getSessionSizeHardLimit();
+                        if (hardLimit >= 0 && size > hardLimit)
+                            Log.warn("Session {} is {} bytes large, above the limit of " + hardLimit + " bytes", getClusterId(), size);
+                    }
+                }
+                reset();
+                if (failed != null)
+                    throw new IllegalStateException("Could not serialize attributes " + failed + " of session " + getClusterId(), failure);
+            }
+
+            /**
+             * Moves this session to the given index key, if it changed.
+             *
+             * @param key the new index key, or null
+             */
+            private void reindex(String key)
+            {
+                String previous = _sessionData.getIndexKey();
+                if (key == null ? previous == null : key.equals(previous)) return;
+                // Local sessions are indexed when they are materialized, removed sessions are unindexed
+                if (_materialized && !_detached)
+                {
+                    if (previous != null) index(previous, getClusterId(), false);
+                    if (key != null) index(key, getClusterId(), true);
+                }
+                _sessionData.setIndexKey(key);
+            }
+
+            private void reset()
+            {
+                _dirty.clear();
+                _removed.clear();
+                _sizes.clear();
+                _encoded.clear();
+                if (!isInRequest())
+                {
+                    _local.clear();
+                    _copies.clear();
+                    _read.clear();
+                }
+            }
+        }
     }
 
     /**
@@ -740,34 +3697,152 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
      */
     public static class SessionData
     {
-        private final String _id;
-        private final Map _attributes;
+        /**
+         * The names of the attributes, mapped to their estimated sizes (0 when size accounting is not enabled).
+         * The values are stored in a separate distributed shared map, see {@link SharedAttributes}.
+         * Don't need synchronization, as we grab a distributed lock when this map is accessed: it is written
+         * while holding the session data lock, see {@link Session#lockData()}, and read while holding either
+         * that lock or the session lock; it is created lazily.
+         */
+        private Map<String, Integer> _attributes;
         private final long _creation;
-        private final MutableLong _expiration;
         private long _previousAccess;
         private long _cookieTime;
+        private long _version;
+        private long _size;
+        private boolean _passivated;
+        /**
+         * The key of this session in the session index, or null.
+         */
+        private String _indexKey;
+
+        public SessionData()
+        {
+            this(System.currentTimeMillis());
+        }
 
+        /**
+         * @param sessionId ignored, the session data is keyed by the session id in the distributed shared maps
+         * @param maxIdleMs ignored, the expiration time is kept in the distributed shared expirations map
+         * @deprecated use {@link #SessionData()}
+         */
+        @Deprecated
         public SessionData(String sessionId, long maxIdleMs)
         {
-            _id = sessionId;
-            // Don't need synchronization, as we grab a distributed session id lock
-            // when this map is accessed.
-            _attributes = new HashMap();
-            _creation = System.currentTimeMillis();
-            _expiration = new MutableLong();
-            _previousAccess = _creation;
-            // Set expiration time to negative value if the session never expires
-            _expiration.value = maxIdleMs > 0 ? _creation + maxIdleMs : -1L;
+            this();
+        }
+
+        private SessionData(long creation)
+        {
+            _creation = creation;
+            _previousAccess = creation;
+        }
+
+        /**
+         * @param data the serialized session data, as returned by {@link #passivate(Map)}
+         * @param values the map to fill with the attribute values
+         * @return the session data restored from its serialized form
+         * @throws IOException if the session data cannot be deserialized
+         * @throws ClassNotFoundException if the class of an attribute cannot be found
+         */
+        protected static SessionData activate(byte[] data, Map<String, Object> values) throws IOException, ClassNotFoundException
+        {
+            ObjectInputStream input = new ClassLoadingObjectInputStream(new ByteArrayInputStream(data));
+            try
+            {
+                SessionData result = new SessionData(input.readLong());
+                result._previousAccess = input.readLong();
+                result._cookieTime = input.readLong();
+                result._version = input.readLong();
+                result._size = input.readLong();
+                result._indexKey = (String)input.readObject();
+                result._attributes = (Map<String, Integer>)input.readObject();
+                values.putAll((Map<String, Object>)input.readObject());
+                return result;
+            }
+            finally
+            {
+                input.close();
+            }
+        }
+
+        /**
+         * @param values the attribute values
+         * @return the serialized form of this session data, without the expiration time
+         * @throws IOException if the session data cannot be serialized
+         */
+        protected byte[] passivate(Map<String, Object> values) throws IOException
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream output = new ObjectOutputStream(bytes);
+            output.writeLong(_creation);
+            output.writeLong(_previousAccess);
+            output.writeLong(_cookieTime);
+            output.writeLong(_version);
+            output.writeLong(_size);
+            output.writeObject(_indexKey);
+            output.writeObject(_attributes == null ? null : new HashMap<String, Integer>(_attributes));
+            output.writeObject(new HashMap<String, Object>(values));
+            output.close();
+            return bytes.toByteArray();
+        }
+
+        /**
+         * @return whether this session data has been passivated, and is therefore not shared anymore
+         */
+        public boolean isPassivated()
+        {
+            return _passivated;
+        }
+
+        protected void setPassivated()
+        {
+            _passivated = true;
+        }
+
+        /**
+         * @return the names of the attributes
+         */
+        protected Set<String> getAttributeNames()
+        {
+            Map<String, Integer> attributes = _attributes;
+            return attributes == null ? Collections.<String>emptySet() : attributes.keySet();
+        }
+
+        protected boolean hasAttribute(String name)
+        {
+            Map<String, Integer> attributes = _attributes;
+            return attributes != null && attributes.containsKey(name);
+        }
+
+        /**
+         * @param name the attribute name
+         * @return the estimated size of the attribute, or 0 if it does not exist or size accounting is not enabled
+         */
+        protected int getAttributeSize(String name)
+        {
+            Map<String, Integer> attributes = _attributes;
+            Integer result = attributes == null ? null : attributes.get(name);
+            return result == null ? 0 : result;
         }
 
-        public String getId()
+        /**
+         * Adds or updates the given attribute name, whose value is stored separately.
+         *
+         * @param name the attribute name
+         * @param size the estimated size of the attribute
+         */
+        protected void putAttribute(String name, int size)
         {
-            return _id;
+            if (_attributes == null) _attributes = new HashMap<String, Integer>();
+            Integer previous = _attributes.put(name, size);
+            _size += size - (previous == null ? 0 : previous);
         }
 
-        protected Map getAttributeMap()
+        protected void removeAttribute(String name)
         {
-            return _attributes;
+            Integer previous = _attributes == null ? null : _attributes.remove(name);
+            if (previous != null) _size -= previous;
         }
 
         public long getCreationTime()
@@ -775,14 +3850,17 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
             return _creation;
         }
 
-        public long getExpirationTime()
+        /**
+         * @return the key of this session in the session index, or null if it is not indexed
+         */
+        public String getIndexKey()
         {
-            return _expiration.value;
+            return _indexKey;
         }
 
-        public void setExpirationTime(long time)
+        protected void setIndexKey(String indexKey)
         {
-            _expiration.value = time;
+            _indexKey = indexKey;
         }
 
         public long getCookieTime()
@@ -790,6 +3868,27 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
             return _cookieTime;
         }
 
+        /**
+         * @return the estimated size in bytes of the attributes
+         */
+        public long getSize()
+        {
+            return _size;
+        }
+
+        /**
+         * @return the version of the attributes, incremented every time an attribute is set or removed
+         */
+        public long getVersion()
+        {
+            return _version;
+        }
+
+        protected long incrementVersion()
+        {
+            return ++_version;
+        }
+
         public void setCookieTime(long time)
         {
             _cookieTime = time;
@@ -878,9 +3977,4 @@ public class TerracottaSessionManager extends AbstractSessionManager implements
             return Collections.unmodifiableMap(nestings.get());
         }
     }
-
-    private static class MutableLong
-    {
-        private long value;
-    }
 }
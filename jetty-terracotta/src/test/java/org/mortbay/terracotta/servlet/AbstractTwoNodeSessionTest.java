@@ -0,0 +1,194 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.util.Random;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.server.session.AbstractSessionManager;
+import org.eclipse.jetty.server.session.AbstractTestServer;
+import org.testng.annotations.AfterMethod;
+
+/**
+ * Runs a test servlet on two nodes, each with a {@link TerracottaSessionManager} per context,
+ * and sends requests to either node with a single client.
+ *
+ * @version $Revision$ $Date$
+ */
+public abstract class AbstractTwoNodeSessionTest
+{
+    public static final String SERVLET_MAPPING = "/server";
+
+    private final AbstractTestServer[] servers = new AbstractTestServer[2];
+    private final int[] ports = new int[2];
+    private HttpClient client;
+
+    public AbstractTestServer createServer(int port, int maxInactivePeriod, int scavengePeriod)
+    {
+        return new TerracottaJettyServer(port, maxInactivePeriod, scavengePeriod)
+        {
+            @Override
+            public AbstractSessionManager newSessionManager()
+            {
+                TerracottaSessionManager manager = (TerracottaSessionManager)super.newSessionManager();
+                configure(manager);
+                return manager;
+            }
+        };
+    }
+
+    /**
+     * Configures the session manager of every context, on both nodes, before it is started.
+     *
+     * @param manager the session manager
+     */
+    protected void configure(TerracottaSessionManager manager)
+    {
+    }
+
+    protected int getMaxInactivePeriod()
+    {
+        return AbstractTestServer.DEFAULT_MAX_INACTIVE;
+    }
+
+    protected int getScavengePeriod()
+    {
+        return AbstractTestServer.DEFAULT_SCAVENGE;
+    }
+
+    /**
+     * Starts both nodes and the client.
+     *
+     * @param servlet the servlet mapped to {@link #SERVLET_MAPPING} in each context
+     * @param contextPaths the context paths, the root context if none
+     */
+    protected void start(Class<? extends HttpServlet> servlet, String... contextPaths) throws Exception
+    {
+        if (contextPaths.length == 0) contextPaths = new String[]{""};
+        Random random = new Random(System.nanoTime());
+        try
+        {
+            for (int i = 0; i < servers.length; ++i)
+            {
+                ports[i] = random.nextInt(50000) + 10000;
+                servers[i] = createServer(ports[i], getMaxInactivePeriod(), getScavengePeriod());
+                for (String contextPath : contextPaths)
+                    servers[i].addContext(contextPath).addServlet(servlet, SERVLET_MAPPING);
+                servers[i].start();
+            }
+            client = new HttpClient();
+            client.setConnectorType(HttpClient.CONNECTOR_SOCKET);
+            client.start();
+        }
+        catch (Exception x)
+        {
+            stop();
+            throw x;
+        }
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void stop() throws Exception
+    {
+        try
+        {
+            if (client != null) client.stop();
+        }
+        finally
+        {
+            client = null;
+            try
+            {
+                if (servers[1] != null) servers[1].stop();
+            }
+            finally
+            {
+                servers[1] = null;
+                try
+                {
+                    if (servers[0] != null) servers[0].stop();
+                }
+                finally
+                {
+                    servers[0] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param node the node, 1 or 2
+     * @return the URL of the servlet in the root context of the given node
+     */
+    protected String url(int node)
+    {
+        return url(node, "");
+    }
+
+    /**
+     * @param node the node, 1 or 2
+     * @param contextPath the context path
+     * @return the URL of the servlet in the given context of the given node
+     */
+    protected String url(int node, String contextPath)
+    {
+        return "http://localhost:" + ports[node - 1] + contextPath + SERVLET_MAPPING;
+    }
+
+    /**
+     * Sends a request, and checks that it succeeds.
+     *
+     * @param url the URL, with its query
+     * @param sessionCookie the session cookie, as returned by {@link #cookie(ContentExchange)}, or null
+     * @return the completed exchange
+     */
+    protected ContentExchange request(String url, String sessionCookie) throws Exception
+    {
+        ContentExchange exchange = new ContentExchange(true);
+        exchange.setMethod(HttpMethods.GET);
+        exchange.setURL(url);
+        if (sessionCookie != null) exchange.getRequestFields().add("Cookie", sessionCookie);
+        client.send(exchange);
+        exchange.waitForDone();
+        assert exchange.getResponseStatus() == HttpServletResponse.SC_OK;
+        return exchange;
+    }
+
+    /**
+     * @return the trimmed content of the response to the given request
+     * @see #request(String, String)
+     */
+    protected String get(String url, String sessionCookie) throws Exception
+    {
+        return request(url, sessionCookie).getResponseContent().trim();
+    }
+
+    /**
+     * @param exchange a completed exchange
+     * @return the session cookie set by the response, to be sent with the following requests
+     */
+    protected String cookie(ContentExchange exchange)
+    {
+        String sessionCookie = exchange.getResponseFields().getStringField("Set-Cookie");
+        assert sessionCookie != null;
+        // Mangle the cookie, replacing Path with $Path, etc.
+        return sessionCookie.replaceFirst("(\\W)(P|p)ath=", "$1\\$Path=");
+    }
+}
@@ -0,0 +1,93 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class AccessTimesWriteBehindTest extends AbstractTwoNodeSessionTest
+{
+    private static final long PRECISION_MS = 500;
+
+    @Override
+    protected void configure(TerracottaSessionManager manager)
+    {
+        manager.setAccessTimePrecisionMs(PRECISION_MS);
+    }
+
+    @Override
+    protected int getMaxInactivePeriod()
+    {
+        return 4;
+    }
+
+    @Override
+    protected int getScavengePeriod()
+    {
+        return 1;
+    }
+
+    @Test(groups={"tc-all"})
+    public void testBatchedAccessTimesKeepSessionAlive() throws Exception
+    {
+        start(TestServlet.class);
+
+        String cookie = cookie(request(url(1) + "?action=init", null));
+
+        // Only node1 is accessed, for longer than the max inactive period; node2 scavenges
+        // the session unless the access times written behind by node1 reach the cluster
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(3 * getMaxInactivePeriod());
+        while (System.currentTimeMillis() < end)
+        {
+            assert get(url(1) + "?action=get", cookie).equals("value");
+            Thread.sleep(PRECISION_MS);
+        }
+
+        assert get(url(2) + "?action=get", cookie).equals("value");
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("init".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                session.setAttribute("attribute", "value");
+            }
+            else if ("get".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                writer.println(session == null ? null : session.getAttribute("attribute"));
+            }
+            writer.flush();
+        }
+    }
+}
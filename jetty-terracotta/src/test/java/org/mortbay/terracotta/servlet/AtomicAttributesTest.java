@@ -0,0 +1,127 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class AtomicAttributesTest extends AbstractTwoNodeSessionTest
+{
+    @Test(groups={"tc-all"})
+    public void testAtomicOperationsAcrossNodes() throws Exception
+    {
+        start(TestServlet.class);
+        final String[] urls = new String[]{url(1), url(2)};
+        final String cookie = cookie(request(urls[0] + "?action=init", null));
+
+        // Concurrent increments on both nodes
+        int clientsCount = 10;
+        final int requestsCount = 20;
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(clientsCount);
+        ExecutorService executor = Executors.newFixedThreadPool(clientsCount);
+        for (int i = 0; i < clientsCount; ++i)
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        Random random = new Random(System.nanoTime());
+                        for (int j = 0; j < requestsCount; ++j)
+                            request(urls[random.nextInt(urls.length)] + "?action=increment", cookie);
+                    }
+                    catch (Throwable x)
+                    {
+                        failures.incrementAndGet();
+                    }
+                    finally
+                    {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        assert latch.await(60, TimeUnit.SECONDS);
+        executor.shutdownNow();
+        assert failures.get() == 0;
+        assert get(urls[0] + "?action=get&name=counter", cookie).equals(String.valueOf(clientsCount * requestsCount));
+        assert get(urls[1] + "?action=get&name=counter", cookie).equals(String.valueOf(clientsCount * requestsCount));
+
+        // Compare and set, the second node sees the value set by the first
+        assert get(urls[0] + "?action=cas&expect=&update=a", cookie).equals("true");
+        assert get(urls[1] + "?action=cas&expect=&update=b", cookie).equals("false");
+        assert get(urls[1] + "?action=cas&expect=a&update=b", cookie).equals("true");
+        assert get(urls[0] + "?action=get&name=cas", cookie).equals("b");
+
+        // Put if absent, the second node does not overwrite the value set by the first
+        assert get(urls[1] + "?action=putIfAbsent&value=x", cookie).equals("null");
+        assert get(urls[0] + "?action=putIfAbsent&value=y", cookie).equals("x");
+        assert get(urls[0] + "?action=get&name=absent", cookie).equals("x");
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("init".equals(action))
+            {
+                request.getSession(true);
+            }
+            else
+            {
+                TerracottaSessionManager.Session session = (TerracottaSessionManager.Session)request.getSession(false);
+                if ("increment".equals(action))
+                {
+                    writer.println(session.addAndGet("counter", 1));
+                }
+                else if ("cas".equals(action))
+                {
+                    String expect = request.getParameter("expect");
+                    writer.println(session.compareAndSet("cas", expect.length() == 0 ? null : expect, request.getParameter("update")));
+                }
+                else if ("putIfAbsent".equals(action))
+                {
+                    writer.println(session.putIfAbsent("absent", request.getParameter("value")));
+                }
+                else if ("get".equals(action))
+                {
+                    writer.println(session.getAttribute(request.getParameter("name")));
+                }
+            }
+            writer.flush();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.jetty.util.log.Log;
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class AttributeCodecsTest
+{
+    @Test(groups={"tc-all"})
+    public void testRoundTrip() throws Exception
+    {
+        AttributeCodecs codecs = new AttributeCodecs();
+        for (Object value : samples().values())
+        {
+            Object decoded = codecs.decode(codecs.encode(value));
+            assert decoded.getClass() == value.getClass();
+            if (value instanceof byte[])
+                assert Arrays.equals((byte[])value, (byte[])decoded);
+            else
+                assert value.equals(decoded) : value;
+        }
+
+        // Collections with non scalar elements fall back to Java serialization
+        List<Object> list = new ArrayList<Object>();
+        Date date = new Date();
+        list.add(date);
+        list.add(date);
+        List<?> decoded = (List<?>)codecs.decode(codecs.encode(list));
+        assert decoded.equals(list);
+        assert decoded.get(0) == decoded.get(1);
+    }
+
+    @Test(groups={"tc-all"})
+    public void testApplicationCodec() throws Exception
+    {
+        AttributeCodecs codecs = new AttributeCodecs();
+        codecs.addCodec(Point.class, AttributeCodecs.MIN_APPLICATION_TAG, new AttributeCodec()
+        {
+            public boolean canEncode(Object value)
+            {
+                return true;
+            }
+
+            public void encode(Object value, DataOutputStream output) throws IOException
+            {
+                output.writeInt(((Point)value)._x);
+                output.writeInt(((Point)value)._y);
+            }
+
+            public Object decode(DataInputStream input) throws IOException
+            {
+                return new Point(input.readInt(), input.readInt());
+            }
+        });
+
+        Point point = new Point(3, 4);
+        assert codecs.canEncode(point);
+        byte[] data = codecs.encode(point);
+        assert data.length == 9;
+        assert point.equals(codecs.decode(data));
+
+        try
+        {
+            codecs.addCodec(Date.class, 1, null);
+            assert false;
+        }
+        catch (IllegalArgumentException x)
+        {
+            // Built-in tag
+        }
+    }
+
+    @Test(groups={"tc-all"})
+    public void testCompression() throws Exception
+    {
+        AttributeCodecs codecs = new AttributeCodecs();
+        codecs.setCompressionThreshold(1024);
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 10000; ++i)
+            builder.append("<input name=\"field").append(i % 100).append("\"/>");
+        String state = builder.toString();
+
+        byte[] data = codecs.encode(state);
+        assert data.length < state.length() / 10;
+        assert state.equals(codecs.decode(data));
+        assert codecs.getCompressedValues() == 1;
+        assert codecs.getUncompressedBytes() > state.length();
+        assert codecs.getCompressedBytes() == data.length;
+        assert codecs.getCompressionRatio() < 0.1D;
+
+        // Small values are not compressed
+        assert codecs.encode("small").length == 10;
+        // Values that do not get smaller are not compressed
+        byte[] random = new byte[4096];
+        new Random().nextBytes(random);
+        assert codecs.encode(random).length == random.length + 5;
+        assert codecs.getCompressedValues() == 1;
+    }
+
+    @Test(groups={"tc-all"})
+    public void testNonSerializableElement() throws Exception
+    {
+        AttributeCodecs codecs = new AttributeCodecs();
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("key", new Object());
+        // The map itself is serializable, its value is not
+        assert codecs.canEncode(map);
+        try
+        {
+            codecs.encode(map);
+            assert false;
+        }
+        catch (IOException x)
+        {
+            // Expected
+        }
+    }
+
+    /**
+     * Compares the encoding size and throughput of the codecs with those of Java serialization.
+     * Not part of the test suite, run with the benchmark group.
+     */
+    @Test(groups={"benchmark"})
+    public void benchmarkRoundTrip() throws Exception
+    {
+        AttributeCodecs codecs = new AttributeCodecs();
+        int iterations = 100000;
+        for (Map.Entry<String, Object> sample : samples().entrySet())
+        {
+            Object value = sample.getValue();
+            byte[] encoded = codecs.encode(value);
+            byte[] serialized = serialize(value);
+
+            // Warm up
+            for (int i = 0; i < iterations / 10; ++i)
+            {
+                codecs.decode(codecs.encode(value));
+                deserialize(serialize(value));
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; ++i)
+                codecs.decode(codecs.encode(value));
+            long codecNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; ++i)
+                deserialize(serialize(value));
+            long serializationNanos = System.nanoTime() - start;
+
+            Log.info(sample.getKey() + ": codec " + encoded.length + " bytes, " +
+                    iterations * 1000000000L / codecNanos + " round trips/s; serialization " +
+                    serialized.length + " bytes, " + iterations * 1000000000L / serializationNanos + " round trips/s");
+            assert encoded.length < serialized.length;
+        }
+    }
+
+    private Map<String, Object> samples()
+    {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("String", "user@example.com");
+        result.put("Integer", 42);
+        result.put("Long", System.currentTimeMillis());
+        result.put("Boolean", Boolean.TRUE);
+        result.put("Double", 3.14D);
+        byte[] bytes = new byte[256];
+        Arrays.fill(bytes, (byte)7);
+        result.put("byte[]", bytes);
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("locale", "en_US");
+        map.put("visits", 12);
+        map.put("admin", Boolean.FALSE);
+        result.put("HashMap", map);
+        List<String> list = new ArrayList<String>();
+        for (int i = 0; i < 10; ++i)
+            list.add("item" + i);
+        result.put("ArrayList", list);
+        return result;
+    }
+
+    private byte[] serialize(Object value) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeObject(value);
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    private Object deserialize(byte[] data) throws Exception
+    {
+        return new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+    }
+
+    private static class Point
+    {
+        private final int _x;
+        private final int _y;
+
+        private Point(int x, int y)
+        {
+            _x = x;
+            _y = y;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof Point && ((Point)obj)._x == _x && ((Point)obj)._y == _y;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * _x + _y;
+        }
+    }
+}
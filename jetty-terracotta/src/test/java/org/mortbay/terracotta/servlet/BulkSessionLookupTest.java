@@ -0,0 +1,97 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.session.AbstractSessionManager;
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class BulkSessionLookupTest extends AbstractTwoNodeSessionTest
+{
+    @Override
+    protected void configure(TerracottaSessionManager manager)
+    {
+        manager.setBulkBatchSize(2);
+        manager.setPrefetchThreads(2);
+    }
+
+    @Test(groups={"tc-all"})
+    public void testLookupOfManySessions() throws Exception
+    {
+        start(TestServlet.class);
+
+        // Sessions created on node2, some of them also used on node1
+        Map<String, String> expected = new TreeMap<String, String>();
+        for (int i = 0; i < 5; ++i)
+        {
+            String value = "value" + i;
+            ContentExchange exchange = request(url(2) + "?action=init&value=" + value, null);
+            expected.put(exchange.getResponseContent().trim(), value);
+            if (i % 2 == 0) request(url(1) + "?action=get", cookie(exchange));
+        }
+
+        // Node1 looks them up at once, in batches smaller than the number of sessions
+        StringBuilder ids = new StringBuilder("unknown");
+        for (String id : expected.keySet()) ids.append(",").append(id);
+        assert get(url(1) + "?action=lookup&ids=" + ids, null).equals(expected.toString());
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("init".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                session.setAttribute("attribute", request.getParameter("value"));
+                writer.println(((Request)request).getSessionManager().getIdManager().getClusterId(session.getId()));
+            }
+            else if ("get".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                writer.println(session.getAttribute("attribute"));
+            }
+            else if ("lookup".equals(action))
+            {
+                TerracottaSessionManager sessionManager = (TerracottaSessionManager)((Request)request).getSessionManager();
+                Map<String, AbstractSessionManager.Session> sessions = sessionManager.getSessions(Arrays.asList(request.getParameter("ids").split(",")));
+                Map<String, Object> result = new TreeMap<String, Object>();
+                for (Map.Entry<String, AbstractSessionManager.Session> entry : sessions.entrySet())
+                    result.put(entry.getKey(), entry.getValue().getAttribute("attribute"));
+                writer.println(result);
+            }
+            writer.flush();
+        }
+    }
+}
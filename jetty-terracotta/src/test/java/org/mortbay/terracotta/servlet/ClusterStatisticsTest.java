@@ -0,0 +1,85 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.eclipse.jetty.server.Request;
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class ClusterStatisticsTest extends AbstractTwoNodeSessionTest
+{
+    @Override
+    protected int getScavengePeriod()
+    {
+        return 1;
+    }
+
+    @Test(groups={"tc-all"})
+    public void testStatisticsAreSummedAcrossNodes() throws Exception
+    {
+        start(TestServlet.class);
+
+        String cookie1 = cookie(request(url(1) + "?action=init", null));
+        request(url(2) + "?action=init", null);
+        request(url(2) + "?action=invalidate", cookie1);
+
+        // Wait for both nodes to publish their counters
+        Thread.sleep(TimeUnit.SECONDS.toMillis(3 * getScavengePeriod()));
+
+        // Sessions, created, invalidated and timed out, as seen by each node
+        assert get(url(1) + "?action=statistics", null).equals("1 2 1 0");
+        assert get(url(2) + "?action=statistics", null).equals("1 2 1 0");
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("init".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                session.setAttribute("attribute", "value");
+            }
+            else if ("invalidate".equals(action))
+            {
+                request.getSession(false).invalidate();
+            }
+            else if ("statistics".equals(action))
+            {
+                TerracottaSessionManager sessionManager = (TerracottaSessionManager)((Request)request).getSessionManager();
+                writer.println(sessionManager.getClusterSessions() + " " +
+                        sessionManager.getClusterSessionsCreated() + " " +
+                        sessionManager.getClusterSessionsInvalidated() + " " +
+                        sessionManager.getClusterSessionsTimedOut());
+            }
+            writer.flush();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class CountingBloomFilterTest
+{
+    @Test(groups={"tc-all"})
+    public void testAddRemove() throws Exception
+    {
+        CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01D);
+        for (int i = 0; i < 1000; ++i)
+            filter.add("session" + i);
+        assert filter.getSize() == 1000;
+        for (int i = 0; i < 1000; ++i)
+            assert filter.mightContain("session" + i);
+
+        for (int i = 0; i < 500; ++i)
+            filter.remove("session" + i);
+        assert filter.getSize() == 500;
+        // Removals never cause false negatives
+        for (int i = 500; i < 1000; ++i)
+            assert filter.mightContain("session" + i);
+    }
+
+    @Test(groups={"tc-all"})
+    public void testFalsePositiveRate() throws Exception
+    {
+        CountingBloomFilter filter = new CountingBloomFilter(10000, 0.01D);
+        // About 9.6 bits per element for a 1% rate, one byte per counter
+        assert filter.getFootprint() >= 95850 && filter.getFootprint() <= 95860 : filter;
+        assert filter.getHashes() == 7 : filter;
+
+        for (int i = 0; i < 10000; ++i)
+            filter.add("node0_" + i);
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; ++i)
+        {
+            if (filter.mightContain("node1_" + i)) ++falsePositives;
+        }
+        assert falsePositives < 2000 : falsePositives;
+    }
+}
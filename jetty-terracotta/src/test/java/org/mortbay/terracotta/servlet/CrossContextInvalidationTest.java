@@ -0,0 +1,77 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.server.Request;
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class CrossContextInvalidationTest extends AbstractTwoNodeSessionTest
+{
+    @Test(groups={"tc-all"})
+    public void testInvalidationOfSharedSessionId() throws Exception
+    {
+        start(TestServlet.class, "/a", "/b");
+
+        // The same session id is used by both contexts
+        ContentExchange exchange = request(url(1, "/a") + "?action=init", null);
+        String clusterId = exchange.getResponseContent().trim();
+        String cookie = cookie(exchange);
+        assert get(url(1, "/b") + "?action=init", cookie).equals(clusterId);
+
+        // Invalidating the session of one context on node2 invalidates the other one as well
+        request(url(2, "/a") + "?action=invalidate", cookie);
+        assert get(url(2, "/b") + "?action=get", cookie).equals("null");
+        assert get(url(1, "/b") + "?action=get", cookie).equals("null");
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("init".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                session.setAttribute("attribute", "value");
+                writer.println(((Request)request).getSessionManager().getIdManager().getClusterId(session.getId()));
+            }
+            else if ("invalidate".equals(action))
+            {
+                request.getSession(false).invalidate();
+            }
+            else if ("get".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                writer.println(session == null ? null : session.getAttribute("attribute"));
+            }
+            writer.flush();
+        }
+    }
+}
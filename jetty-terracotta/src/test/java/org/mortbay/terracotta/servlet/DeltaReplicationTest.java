@@ -0,0 +1,138 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class DeltaReplicationTest extends AbstractTwoNodeSessionTest
+{
+    private boolean serializedAttributes;
+
+    @Override
+    protected void configure(TerracottaSessionManager manager)
+    {
+        manager.setSerializedAttributes(serializedAttributes);
+    }
+
+    @Test(groups={"tc-all"})
+    public void testAttributeChangesAreReplicated() throws Exception
+    {
+        testAttributeChanges(false);
+    }
+
+    @Test(groups={"tc-all"})
+    public void testSerializedAttributeChangesAreReplicated() throws Exception
+    {
+        testAttributeChanges(true);
+    }
+
+    private void testAttributeChanges(boolean serializedAttributes) throws Exception
+    {
+        this.serializedAttributes = serializedAttributes;
+        start(TestServlet.class);
+
+        String cookie = cookie(request(url(1) + "?action=init", null));
+
+        // Node2 changes one attribute and removes another, leaving the third untouched
+        request(url(2) + "?action=update", cookie);
+        assert get(url(1) + "?action=get&name=a", cookie).equals("3");
+        assert get(url(1) + "?action=get&name=b", cookie).equals("null");
+        assert get(url(1) + "?action=get&name=list", cookie).equals("[x]");
+
+        // A value mutated in place and set again is replicated
+        request(url(1) + "?action=append", cookie);
+        assert get(url(2) + "?action=get&name=list", cookie).equals("[x, y]");
+        assert get(url(2) + "?action=get&name=a", cookie).equals("3");
+
+        // A value set again unchanged is not published
+        String version = get(url(2) + "?action=version", cookie);
+        request(url(2) + "?action=touch", cookie);
+        assert get(url(1) + "?action=version", cookie).equals(version);
+
+        // A value mutated in place and marked dirty is replicated
+        request(url(2) + "?action=mark", cookie);
+        assert get(url(1) + "?action=get&name=list", cookie).equals("[x, y, z]");
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("init".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                session.setAttribute("a", "1");
+                session.setAttribute("b", "2");
+                List<String> list = new ArrayList<String>();
+                list.add("x");
+                session.setAttribute("list", list);
+            }
+            else if ("update".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                session.setAttribute("a", "3");
+                session.removeAttribute("b");
+            }
+            else if ("append".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                List<String> list = (List<String>)session.getAttribute("list");
+                list.add("y");
+                session.setAttribute("list", list);
+            }
+            else if ("touch".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                session.setAttribute("list", session.getAttribute("list"));
+            }
+            else if ("mark".equals(action))
+            {
+                TerracottaSessionManager.Session session = (TerracottaSessionManager.Session)request.getSession(false);
+                List<String> list = (List<String>)session.getAttribute("list");
+                list.add("z");
+                session.markDirty("list");
+            }
+            else if ("version".equals(action))
+            {
+                TerracottaSessionManager.Session session = (TerracottaSessionManager.Session)request.getSession(false);
+                writer.println(session.getSessionData().getVersion());
+            }
+            else if ("get".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                writer.println(session.getAttribute(request.getParameter("name")));
+            }
+            writer.flush();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.eclipse.jetty.server.Request;
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class LazyAttributesTest extends AbstractTwoNodeSessionTest
+{
+    @Test(groups={"tc-all"})
+    public void testOnlyReadAttributesAreFaultedIn() throws Exception
+    {
+        start(TestServlet.class);
+
+        String cookie = cookie(request(url(1) + "?action=init", null));
+
+        // Node2 reads a single attribute, twice in the same request
+        request(url(2) + "?action=reset", null);
+        assert get(url(2) + "?action=get&name=attribute3", cookie).equals("1024");
+
+        // Only that attribute has been read from the shared attributes
+        assert get(url(2) + "?action=reads", null).equals("1");
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            TerracottaSessionManager sessionManager = (TerracottaSessionManager)((Request)request).getSessionManager();
+            if ("init".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                for (int i = 0; i < 10; ++i)
+                    session.setAttribute("attribute" + i, new byte[1024]);
+            }
+            else if ("get".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                String name = request.getParameter("name");
+                byte[] value = (byte[])session.getAttribute(name);
+                assert value == session.getAttribute(name);
+                writer.println(value.length);
+            }
+            else if ("reset".equals(action))
+            {
+                sessionManager.resetSharedAttributeStatistics();
+            }
+            else if ("reads".equals(action))
+            {
+                writer.println(sessionManager.getSharedAttributeReads());
+            }
+            writer.flush();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.eclipse.jetty.server.Request;
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class MaxSessionsTest extends AbstractTwoNodeSessionTest
+{
+    @Override
+    protected void configure(TerracottaSessionManager manager)
+    {
+        manager.setMaxSessions(2);
+    }
+
+    @Test(groups={"tc-all"})
+    public void testOldestSessionIsEvicted() throws Exception
+    {
+        start(TestServlet.class);
+
+        String cookieA = cookie(request(url(1) + "?action=init&value=a", null));
+        String cookieB = cookie(request(url(2) + "?action=init&value=b", null));
+
+        // The third session exceeds the cluster limit, node1 evicts its least recently used session
+        String cookieC = cookie(request(url(1) + "?action=init&value=c", null));
+        assert get(url(1) + "?action=evicted", null).equals("1");
+
+        assert get(url(2) + "?action=get", cookieA).equals("null");
+        assert get(url(1) + "?action=get", cookieB).equals("b");
+        assert get(url(2) + "?action=get", cookieC).equals("c");
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("init".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                session.setAttribute("attribute", request.getParameter("value"));
+            }
+            else if ("get".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                writer.println(session == null ? null : session.getAttribute("attribute"));
+            }
+            else if ("evicted".equals(action))
+            {
+                TerracottaSessionManager sessionManager = (TerracottaSessionManager)((Request)request).getSessionManager();
+                writer.println(sessionManager.getSessionsEvicted());
+            }
+            writer.flush();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class NodeLocalAttributesTest extends AbstractTwoNodeSessionTest
+{
+    @Override
+    protected void configure(TerracottaSessionManager manager)
+    {
+        manager.setNodeLocalAttributePrefix("local.");
+    }
+
+    @Test(groups={"tc-all"})
+    public void testNodeLocalAttributesAreNotReplicated() throws Exception
+    {
+        start(TestServlet.class);
+
+        String cookie = cookie(request(url(1) + "?action=init", null));
+
+        // The node-local attributes stay on node1
+        assert get(url(1) + "?action=get&name=local.cache", cookie).equals("cache");
+        assert get(url(1) + "?action=get&name=handle", cookie).equals("handle");
+
+        // Node2 only sees the replicated attribute
+        assert get(url(2) + "?action=get&name=shared", cookie).equals("shared");
+        assert get(url(2) + "?action=get&name=local.cache", cookie).equals("null");
+        assert get(url(2) + "?action=get&name=handle", cookie).equals("null");
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("init".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                session.setAttribute("shared", "shared");
+                session.setAttribute("local.cache", "cache");
+                session.setAttribute("handle", new Handle());
+            }
+            else if ("get".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                writer.println(session.getAttribute(request.getParameter("name")));
+            }
+            writer.flush();
+        }
+    }
+
+    public static class Handle implements NodeLocalAttribute
+    {
+        @Override
+        public String toString()
+        {
+            return "handle";
+        }
+    }
+}
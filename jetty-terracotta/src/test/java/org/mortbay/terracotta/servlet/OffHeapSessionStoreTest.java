@@ -0,0 +1,102 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class OffHeapSessionStoreTest
+{
+    @Test(groups={"tc-all"})
+    public void testPutGet()
+    {
+        OffHeapSessionStore store = new OffHeapSessionStore(4096, 1024);
+        byte[] data = new byte[100];
+        Arrays.fill(data, (byte)7);
+        assert store.put("a", 1, -1, data);
+        assert Arrays.equals(data, store.get("a", 1));
+        assert store.getUsedBytes() == data.length;
+
+        // Stale version
+        assert store.get("a", 2) == null;
+        assert store.getSize() == 0;
+        assert store.getUsedBytes() == 0;
+        assert store.getHits() == 1;
+        assert store.getMisses() == 1;
+    }
+
+    @Test(groups={"tc-all"})
+    public void testEvictionOfLeastRecentlyUsed()
+    {
+        // One slab of 1024 bytes, holding 2 chunks of 512 bytes
+        OffHeapSessionStore store = new OffHeapSessionStore(1024, 1024);
+        assert store.put("a", 1, -1, new byte[500]);
+        assert store.put("b", 1, -1, new byte[500]);
+        assert store.get("a", 1) != null;
+        assert store.put("c", 1, -1, new byte[500]);
+        assert store.getIds().equals(Arrays.asList("a", "c"));
+        assert store.getEvictions() == 1;
+
+        // Larger than the slab
+        assert !store.put("d", 1, -1, new byte[2048]);
+    }
+
+    @Test(groups={"tc-all"})
+    public void testFreeSlabsAreReused()
+    {
+        // Two slabs of 1024 bytes, both carved in chunks of 64 bytes
+        OffHeapSessionStore store = new OffHeapSessionStore(2048, 1024);
+        for (int i = 0; i < 32; ++i)
+            assert store.put("small" + i, 1, -1, new byte[10]);
+        for (int i = 0; i < 32; ++i)
+            assert store.remove("small" + i);
+
+        // The slabs are free again, and can be carved in chunks of 512 bytes
+        assert store.put("a", 1, -1, new byte[500]);
+        assert store.put("b", 1, -1, new byte[500]);
+        assert store.put("c", 1, -1, new byte[500]);
+        assert store.getEvictions() == 0;
+        assert store.getAllocatedBytes() == 2048;
+    }
+
+    @Test(groups={"tc-all"})
+    public void testEvictionOfOtherSizes()
+    {
+        // One slab of 1024 bytes, carved in chunks of 64 bytes
+        OffHeapSessionStore store = new OffHeapSessionStore(1024, 1024);
+        for (int i = 0; i < 16; ++i)
+            assert store.put("small" + i, 1, -1, new byte[10]);
+
+        // The small entries are evicted until the slab is free
+        assert store.put("a", 1, -1, new byte[500]);
+        assert store.getIds().equals(Arrays.asList("a"));
+        assert store.getEvictions() == 16;
+    }
+
+    @Test(groups={"tc-all"})
+    public void testPurge()
+    {
+        OffHeapSessionStore store = new OffHeapSessionStore(4096, 1024);
+        store.put("a", 1, 1000, new byte[10]);
+        store.put("b", 1, 3000, new byte[10]);
+        store.put("c", 1, -1, new byte[10]);
+        assert store.purge(2000) == 1;
+        assert store.getIds().equals(Arrays.asList("b", "c"));
+    }
+}
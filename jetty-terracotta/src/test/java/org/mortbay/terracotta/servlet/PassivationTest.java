@@ -0,0 +1,105 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class PassivationTest extends AbstractTwoNodeSessionTest
+{
+    private static final long PASSIVATION_IDLE_MS = 1000;
+
+    private final File directory = new File(System.getProperty("java.io.tmpdir"), "passivation-" + System.nanoTime());
+
+    @Override
+    protected void configure(TerracottaSessionManager manager)
+    {
+        // Both nodes share the store
+        manager.setPassivationStore(new FilePassivationStore(directory));
+        manager.setPassivationIdleMs(PASSIVATION_IDLE_MS);
+    }
+
+    @Override
+    protected int getScavengePeriod()
+    {
+        return 1;
+    }
+
+    @Test(groups={"tc-all"})
+    public void testPassivatedSessionIsActivatedOnOtherNode() throws Exception
+    {
+        directory.deleteOnExit();
+        start(TestServlet.class);
+
+        String cookie = cookie(request(url(1) + "?action=init", null));
+        assert sessions() == 0;
+
+        // Wait for the idle session to be passivated by the scavenger
+        Thread.sleep(PASSIVATION_IDLE_MS + TimeUnit.SECONDS.toMillis(3 * getScavengePeriod()));
+        assert sessions() == 1;
+
+        // The other node activates the session with its attributes
+        assert get(url(2) + "?action=get", cookie).equals("value");
+        assert sessions() == 0;
+        assert get(url(1) + "?action=get", cookie).equals("value");
+    }
+
+    private int sessions()
+    {
+        String[] names = directory.list(new FilenameFilter()
+        {
+            public boolean accept(File dir, String name)
+            {
+                return name.endsWith(".session");
+            }
+        });
+        return names == null ? 0 : names.length;
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("init".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                session.setAttribute("attribute", "value");
+            }
+            else if ("get".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                writer.println(session == null ? null : session.getAttribute("attribute"));
+            }
+            writer.flush();
+        }
+    }
+}
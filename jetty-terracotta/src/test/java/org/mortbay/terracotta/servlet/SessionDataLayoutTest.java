@@ -0,0 +1,103 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.eclipse.jetty.client.ContentExchange;
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class SessionDataLayoutTest extends AbstractTwoNodeSessionTest
+{
+    private boolean serializedAttributes;
+
+    @Override
+    protected void configure(TerracottaSessionManager manager)
+    {
+        manager.setSerializedAttributes(serializedAttributes);
+        manager.setSizeAccounting(true);
+    }
+
+    @Test(groups={"tc-all"})
+    public void testLazyAttributeMaps() throws Exception
+    {
+        testSessionData(false);
+    }
+
+    @Test(groups={"tc-all"})
+    public void testLazyAttributeMapsWithSerializedAttributes() throws Exception
+    {
+        testSessionData(true);
+    }
+
+    private void testSessionData(boolean serializedAttributes) throws Exception
+    {
+        this.serializedAttributes = serializedAttributes;
+        start(TestServlet.class);
+
+        // A session without attributes
+        ContentExchange exchange = request(url(1) + "?action=init", null);
+        String creationTime = exchange.getResponseContent().trim();
+        String cookie = cookie(exchange);
+
+        // Node2 sees the same session data, and creates its first attribute
+        assert get(url(2) + "?action=info", cookie).equals(creationTime);
+        request(url(2) + "?action=set&value=a", cookie);
+        assert get(url(1) + "?action=get", cookie).equals("a");
+
+        // Removing the last attribute leaves an empty session
+        request(url(1) + "?action=remove", cookie);
+        assert get(url(2) + "?action=get", cookie).equals("null");
+        assert get(url(2) + "?action=info", cookie).equals(creationTime);
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("init".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                writer.println(session.getCreationTime());
+            }
+            else
+            {
+                HttpSession session = request.getSession(false);
+                if ("info".equals(action))
+                    writer.println(session.getCreationTime());
+                else if ("set".equals(action))
+                    session.setAttribute("attribute", request.getParameter("value"));
+                else if ("remove".equals(action))
+                    session.removeAttribute("attribute");
+                else if ("get".equals(action))
+                    writer.println(session.getAttribute("attribute"));
+            }
+            writer.flush();
+        }
+    }
+}
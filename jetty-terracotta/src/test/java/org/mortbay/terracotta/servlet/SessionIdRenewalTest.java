@@ -0,0 +1,85 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.server.Request;
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class SessionIdRenewalTest extends AbstractTwoNodeSessionTest
+{
+    @Test(groups={"tc-all"})
+    public void testRenewedSessionKeepsAttributes() throws Exception
+    {
+        start(TestServlet.class);
+
+        ContentExchange exchange1 = request(url(1) + "?action=init", null);
+        String oldCookie = cookie(exchange1);
+        String oldId = exchange1.getResponseContent().trim();
+
+        // Rotate the session id, the new cookie replaces the old one
+        ContentExchange exchange2 = request(url(1) + "?action=renew", oldCookie);
+        String newCookie = cookie(exchange2);
+        String newId = exchange2.getResponseContent().trim();
+        assert !newId.equals(oldId);
+
+        // The attributes are available under the new id, on both nodes
+        assert get(url(1) + "?action=get", newCookie).equals("value");
+        assert get(url(2) + "?action=get", newCookie).equals("value");
+
+        // The old id is no longer valid
+        assert get(url(2) + "?action=get", oldCookie).equals("null");
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("init".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                session.setAttribute("attribute", "value");
+                writer.println(session.getId());
+            }
+            else if ("renew".equals(action))
+            {
+                TerracottaSessionManager sessionManager = (TerracottaSessionManager)((Request)request).getSessionManager();
+                HttpSession session = sessionManager.renewSessionId((Request)request);
+                writer.println(session.getId());
+            }
+            else if ("get".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                writer.println(session == null ? null : session.getAttribute("attribute"));
+            }
+            writer.flush();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.eclipse.jetty.server.Request;
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class SessionIdUniquenessTest extends AbstractTwoNodeSessionTest
+{
+    @Test(groups={"tc-all"})
+    public void testSessionIdsAreUniqueAcrossNodes() throws Exception
+    {
+        start(TestServlet.class);
+
+        // Sessions created concurrently on both nodes
+        int clientsCount = 10;
+        final int requestsCount = 50;
+        final Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(clientsCount);
+        ExecutorService executor = Executors.newFixedThreadPool(clientsCount);
+        for (int i = 0; i < clientsCount; ++i)
+        {
+            final String url = url(i % 2 + 1);
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int j = 0; j < requestsCount; ++j)
+                            if (!ids.add(get(url + "?action=init", null)))
+                                failures.incrementAndGet();
+                    }
+                    catch (Throwable x)
+                    {
+                        failures.incrementAndGet();
+                    }
+                    finally
+                    {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        assert latch.await(60, TimeUnit.SECONDS);
+        executor.shutdownNow();
+        assert failures.get() == 0;
+        assert ids.size() == clientsCount * requestsCount;
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("init".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                writer.println(((Request)request).getSessionManager().getIdManager().getClusterId(session.getId()));
+            }
+            writer.flush();
+        }
+    }
+}
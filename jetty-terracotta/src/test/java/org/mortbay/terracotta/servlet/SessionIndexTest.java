@@ -0,0 +1,101 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.security.Principal;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.eclipse.jetty.server.Request;
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class SessionIndexTest extends AbstractTwoNodeSessionTest
+{
+    @Override
+    protected void configure(TerracottaSessionManager manager)
+    {
+        manager.setIndexAttribute("user");
+    }
+
+    @Test(groups={"tc-all"})
+    public void testInvalidateSessionsOfUser() throws Exception
+    {
+        start(TestServlet.class);
+
+        // Alice logs in on both nodes, Bob on one
+        String alice1 = cookie(request(url(1) + "?action=login&user=alice", null));
+        String alice2 = cookie(request(url(2) + "?action=login&user=alice", null));
+        String bob = cookie(request(url(2) + "?action=login&user=bob", null));
+
+        // Alice's sessions are invalidated from the node where she has only one of them
+        assert get(url(1) + "?action=invalidate&user=alice", null).equals("2");
+
+        assert get(url(1) + "?action=get", alice1).equals("null");
+        assert get(url(2) + "?action=get", alice2).equals("null");
+        assert get(url(1) + "?action=get", bob).equals("bob");
+        assert get(url(1) + "?action=invalidate&user=alice", null).equals("0");
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("login".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                session.setAttribute("user", new UserPrincipal(request.getParameter("user")));
+            }
+            else if ("get".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                writer.println(session == null ? null : ((Principal)session.getAttribute("user")).getName());
+            }
+            else if ("invalidate".equals(action))
+            {
+                TerracottaSessionManager sessionManager = (TerracottaSessionManager)((Request)request).getSessionManager();
+                writer.println(sessionManager.invalidateSessions(request.getParameter("user")));
+            }
+            writer.flush();
+        }
+    }
+
+    public static class UserPrincipal implements Principal, Serializable
+    {
+        private final String name;
+
+        public UserPrincipal(String name)
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class SessionPrefetchTest extends AbstractTwoNodeSessionTest
+{
+    @Override
+    protected void configure(TerracottaSessionManager manager)
+    {
+        // A small queue, so that some prefetches are discarded
+        manager.setPrefetchThreads(2);
+        manager.setPrefetchQueueSize(1);
+    }
+
+    @Test(groups={"tc-all"})
+    public void testPrefetchedSessionsAcrossNodes() throws Exception
+    {
+        start(TestServlet.class);
+
+        // Several sessions, created on either node
+        int sessionsCount = 5;
+        final String[] cookies = new String[sessionsCount];
+        final AtomicInteger[] counts = new AtomicInteger[sessionsCount];
+        for (int i = 0; i < sessionsCount; ++i)
+        {
+            cookies[i] = cookie(request(url(i % 2 + 1) + "?action=init", null));
+            counts[i] = new AtomicInteger();
+        }
+
+        // Concurrent requests for random sessions on random nodes, whose session data is prefetched
+        int clientsCount = 10;
+        final int requestsCount = 20;
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(clientsCount);
+        ExecutorService executor = Executors.newFixedThreadPool(clientsCount);
+        for (int i = 0; i < clientsCount; ++i)
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        Random random = new Random(System.nanoTime());
+                        for (int j = 0; j < requestsCount; ++j)
+                        {
+                            int session = random.nextInt(cookies.length);
+                            request(url(random.nextInt(2) + 1) + "?action=increment", cookies[session]);
+                            counts[session].incrementAndGet();
+                        }
+                    }
+                    catch (Throwable x)
+                    {
+                        failures.incrementAndGet();
+                    }
+                    finally
+                    {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        assert latch.await(60, TimeUnit.SECONDS);
+        executor.shutdownNow();
+        assert failures.get() == 0;
+        for (int i = 0; i < sessionsCount; ++i)
+            assert get(url((i + 1) % 2 + 1) + "?action=get", cookies[i]).equals(String.valueOf(counts[i].get()));
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("init".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                session.setAttribute("counter", 0);
+            }
+            else if ("increment".equals(action))
+            {
+                // The session lock serializes the requests for the same session
+                HttpSession session = request.getSession(false);
+                int value = (Integer)session.getAttribute("counter");
+                session.setAttribute("counter", value + 1);
+            }
+            else if ("get".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                writer.println(session.getAttribute("counter"));
+            }
+            writer.flush();
+        }
+    }
+}
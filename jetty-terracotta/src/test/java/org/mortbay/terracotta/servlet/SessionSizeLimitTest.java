@@ -0,0 +1,94 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.server.Request;
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class SessionSizeLimitTest extends AbstractTwoNodeSessionTest
+{
+    private static final long SIZE_LIMIT = 1024;
+
+    @Override
+    protected void configure(TerracottaSessionManager manager)
+    {
+        manager.setSessionSizeHardLimit(SIZE_LIMIT);
+    }
+
+    @Test(groups={"tc-all"})
+    public void testAttributeAboveLimitIsRefused() throws Exception
+    {
+        start(TestServlet.class);
+
+        ContentExchange exchange = request(url(1) + "?action=init", null);
+        assert exchange.getResponseContent().trim().equals("refused");
+        String cookie = cookie(exchange);
+
+        // The attribute above the limit is not replicated, the others are
+        assert get(url(2) + "?action=get&name=small", cookie).equals("small");
+        assert get(url(2) + "?action=get&name=large", cookie).equals("null");
+
+        long size = Long.parseLong(get(url(1) + "?action=size", null));
+        assert size > 0 && size <= SIZE_LIMIT;
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("init".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                session.setAttribute("small", "small");
+                try
+                {
+                    session.setAttribute("large", new String(new char[4096]));
+                    writer.println("accepted");
+                }
+                catch (IllegalArgumentException x)
+                {
+                    writer.println("refused");
+                }
+            }
+            else if ("get".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                writer.println(session.getAttribute(request.getParameter("name")));
+            }
+            else if ("size".equals(action))
+            {
+                TerracottaSessionManager sessionManager = (TerracottaSessionManager)((Request)request).getSessionManager();
+                writer.println(sessionManager.getMaxSessionSize());
+            }
+            writer.flush();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class SessionSnapshotTest
+{
+    @Test(groups={"tc-all"})
+    public void testWriteRead() throws Exception
+    {
+        File file = File.createTempFile("sessions", ".snapshot");
+        file.deleteOnExit();
+
+        List<SessionSnapshot.Entry> entries = new ArrayList<SessionSnapshot.Entry>();
+        entries.add(new SessionSnapshot.Entry("a", 1, -1, new byte[]{1, 2, 3}));
+        entries.add(new SessionSnapshot.Entry("b", 5, 1000, new byte[]{4}));
+        SessionSnapshot.write(file, "_ctx:0.0.0.0", entries);
+
+        assert SessionSnapshot.read(file, "_other:0.0.0.0") == null;
+
+        SessionSnapshot snapshot = SessionSnapshot.read(file, "_ctx:0.0.0.0");
+        assert snapshot.getSize() == 2;
+        assert Arrays.equals(new byte[]{1, 2, 3}, snapshot.take("a", 1));
+        // Stale version
+        assert snapshot.take("b", 6) == null;
+        assert snapshot.getSize() == 0;
+    }
+}
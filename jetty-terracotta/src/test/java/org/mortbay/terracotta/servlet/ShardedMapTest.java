@@ -0,0 +1,50 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class ShardedMapTest
+{
+    @Test(groups={"tc-all"})
+    public void testSharding() throws Exception
+    {
+        Hashtable<String, Long>[] shards = new Hashtable[4];
+        for (int i = 0; i < shards.length; ++i)
+            shards[i] = new Hashtable<String, Long>();
+        ShardedMap<String, Long> map = new ShardedMap<String, Long>(shards);
+
+        for (int i = 0; i < 100; ++i)
+            map.put("session" + i, (long)i);
+        assert map.size() == 100;
+        for (Hashtable<String, Long> shard : shards)
+            assert !shard.isEmpty();
+
+        assert map.get("session7") == 7L;
+        assert map.containsKey("session42");
+        assert map.remove("session42") == 42L;
+        assert !map.containsKey("session42");
+
+        Map<String, Long> snapshot = map.snapshot();
+        assert snapshot.size() == 99;
+        assert snapshot.get("session99") == 99L;
+    }
+}
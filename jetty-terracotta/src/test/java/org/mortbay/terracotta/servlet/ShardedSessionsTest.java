@@ -0,0 +1,136 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import com.tc.object.bytecode.ManagerUtil;
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class ShardedSessionsTest extends AbstractTwoNodeSessionTest
+{
+    private static final int SHARDS = 4;
+    private static final String CONTEXT_PATH = "/sharded";
+    /**
+     * The name of the expirations root of the context, see {@link TerracottaSessionManager}.
+     */
+    private static final String EXPIRATIONS_ROOT = "sessionExpirations:_sharded:0.0.0.0";
+
+    @Override
+    protected void configure(TerracottaSessionManager manager)
+    {
+        manager.setShards(SHARDS);
+    }
+
+    @Override
+    protected int getMaxInactivePeriod()
+    {
+        return 4;
+    }
+
+    @Override
+    protected int getScavengePeriod()
+    {
+        return 1;
+    }
+
+    @Test(groups={"tc-all"})
+    public void testShardedSessionsAcrossNodes() throws Exception
+    {
+        start(TestServlet.class, CONTEXT_PATH);
+
+        // Sessions created on either node are found on the other one, whatever their shard
+        int sessionsCount = 16;
+        String[] cookies = new String[sessionsCount];
+        for (int i = 0; i < sessionsCount; ++i)
+            cookies[i] = cookie(request(url(i % 2 + 1, CONTEXT_PATH) + "?action=init", null));
+        for (int i = 0; i < sessionsCount; ++i)
+            assert get(url((i + 1) % 2 + 1, CONTEXT_PATH) + "?action=get", cookies[i]).equals("value");
+
+        // The sessions are spread over the shard roots, and the unsharded root is not used
+        String[] sizes = get(url(1, CONTEXT_PATH) + "?action=shards", null).split(" ");
+        assert sizes.length == SHARDS + 1;
+        int total = 0;
+        int used = 0;
+        for (int i = 0; i < SHARDS; ++i)
+        {
+            int size = Integer.parseInt(sizes[i]);
+            total += size;
+            if (size > 0) ++used;
+        }
+        assert total == sessionsCount;
+        assert used > 1;
+        assert sizes[SHARDS].equals("0");
+
+        // The scavengers expire the sessions of every shard
+        Thread.sleep(TimeUnit.SECONDS.toMillis(3 * getMaxInactivePeriod()));
+        assert get(url(2, CONTEXT_PATH) + "?action=shards", null).equals("0 0 0 0 0");
+        for (int i = 0; i < sessionsCount; ++i)
+            assert get(url(i % 2 + 1, CONTEXT_PATH) + "?action=get", cookies[i]).equals("null");
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("init".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                session.setAttribute("attribute", "value");
+            }
+            else if ("get".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                writer.println(session == null ? null : session.getAttribute("attribute"));
+            }
+            else if ("shards".equals(action))
+            {
+                StringBuilder sizes = new StringBuilder();
+                for (int i = 0; i < SHARDS; ++i)
+                    sizes.append(rootSize(EXPIRATIONS_ROOT + ":" + i)).append(" ");
+                writer.println(sizes.append(rootSize(EXPIRATIONS_ROOT)));
+            }
+            writer.flush();
+        }
+
+        private int rootSize(String name)
+        {
+            TerracottaSessionManager.Lock.lock(name);
+            try
+            {
+                return ((Hashtable)ManagerUtil.lookupOrCreateRootNoDepth(name, new Hashtable())).size();
+            }
+            finally
+            {
+                TerracottaSessionManager.Lock.unlock(name);
+            }
+        }
+    }
+}
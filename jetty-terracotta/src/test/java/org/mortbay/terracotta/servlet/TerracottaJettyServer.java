@@ -54,7 +54,7 @@ public class TerracottaJettyServer extends AbstractTestServer
     @Override
     public SessionIdManager newSessionIdManager()
     {
-        TerracottaSessionIdManager idManager = new TerracottaSessionIdManager(_server);     
+        TerracottaSessionIdManager idManager = new TerracottaSessionIdManager();
         idManager.setWorkerName(String.valueOf(System.currentTimeMillis()));
         return idManager;
     }
@@ -0,0 +1,167 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jetty.util.log.Log;
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class TerracottaSessionIdManagerTest
+{
+    @Test(groups={"tc-all"})
+    public void testThreadRandoms() throws Exception
+    {
+        final TerracottaSessionIdManager idManager = new TerracottaSessionIdManager();
+        idManager.initRandom();
+
+        final Set<Long> randoms = new HashSet<Long>();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < 1000; ++j)
+                    {
+                        long random = idManager.nextRandom();
+                        synchronized (randoms)
+                        {
+                            randoms.add(random);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        // Generators of different threads have different seeds
+        assert randoms.size() == threads.length * 1000 : randoms.size();
+    }
+
+    /**
+     * Not part of the test suite, run with the benchmark group.
+     */
+    @Test(groups={"benchmark"})
+    public void benchmarkNewSessionId() throws Exception
+    {
+        final TerracottaSessionIdManager idManager = new TerracottaSessionIdManager();
+        idManager.start();
+        try
+        {
+            final HttpServletRequest request = newRequest();
+            final Random shared = SecureRandom.getInstance("SHA1PRNG");
+            final int iterations = 20000;
+
+            for (int threads = 1; threads <= 64; threads <<= 1)
+            {
+                long sharedRate = benchmark(threads, iterations, new Runnable()
+                {
+                    public void run()
+                    {
+                        shared.nextLong();
+                    }
+                });
+                long idRate = benchmark(threads, iterations, new Runnable()
+                {
+                    public void run()
+                    {
+                        idManager.newSessionId(request, System.currentTimeMillis());
+                    }
+                });
+                Log.info(threads + " threads: shared generator " + sharedRate + " randoms/s, newSessionId " + idRate + " ids/s");
+            }
+        }
+        finally
+        {
+            idManager.stop();
+        }
+    }
+
+    /**
+     * @return a request without requested session id and without attributes
+     */
+    private HttpServletRequest newRequest()
+    {
+        return (HttpServletRequest)Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HttpServletRequest.class}, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if ("hashCode".equals(name)) return System.identityHashCode(proxy);
+                if ("equals".equals(name)) return proxy == args[0];
+                if ("getRemoteAddr".equals(name)) return "127.0.0.1";
+                return null;
+            }
+        });
+    }
+
+    private long benchmark(int threads, final int iterations, final Runnable task) throws InterruptedException
+    {
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch stop = new CountDownLatch(threads);
+        for (int i = 0; i < threads; ++i)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        // Warm up, which also creates the per-thread generator
+                        for (int j = 0; j < iterations / 10; ++j)
+                            task.run();
+                        ready.countDown();
+                        start.await();
+                        for (int j = 0; j < iterations; ++j)
+                            task.run();
+                    }
+                    catch (InterruptedException x)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally
+                    {
+                        stop.countDown();
+                    }
+                }
+            }.start();
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        stop.await();
+        long elapsed = Math.max(1, System.nanoTime() - begin);
+        return (long)threads * iterations * 1000000000L / elapsed;
+    }
+}
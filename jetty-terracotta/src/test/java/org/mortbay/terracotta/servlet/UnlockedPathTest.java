@@ -0,0 +1,123 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.terracotta.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.server.Request;
+import org.testng.annotations.Test;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class UnlockedPathTest extends AbstractTwoNodeSessionTest
+{
+    @Override
+    protected void configure(TerracottaSessionManager manager)
+    {
+        manager.setUnlockedPaths(new String[]{SERVLET_MAPPING});
+    }
+
+    @Override
+    protected int getScavengePeriod()
+    {
+        return 1;
+    }
+
+    @Test(groups={"tc-all"})
+    public void testInvalidateOnUnlockedPath() throws Exception
+    {
+        start(TestServlet.class);
+
+        String cookie = cookie(request(url(1) + "?action=init", null));
+        assert get(url(2) + "?action=get", cookie).equals("value");
+
+        // The session is invalidated by a request that does not hold the session lock
+        request(url(2) + "?action=invalidate", cookie);
+        assert get(url(1) + "?action=get", cookie).equals("null");
+        assert get(url(2) + "?action=get", cookie).equals("null");
+    }
+
+    @Test(groups={"tc-all"})
+    public void testMaxInactiveIntervalOnUnlockedPath() throws Exception
+    {
+        start(TestServlet.class);
+
+        String cookie = cookie(request(url(1) + "?action=init", null));
+
+        // The shorter expiration time is written by a request that does not hold the session lock,
+        // and the session is scavenged once it expires
+        request(url(2) + "?action=interval&secs=1", cookie);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(5 * getScavengePeriod()));
+        assert get(url(1) + "?action=get", cookie).equals("null");
+    }
+
+    @Test(groups={"tc-all"})
+    public void testRenewSessionIdOnUnlockedPath() throws Exception
+    {
+        start(TestServlet.class);
+
+        String oldCookie = cookie(request(url(1) + "?action=init", null));
+
+        // The session id is renewed by a request that does not hold the old session lock
+        ContentExchange exchange = request(url(2) + "?action=renew", oldCookie);
+        String newCookie = cookie(exchange);
+        assert get(url(1) + "?action=get", newCookie).equals("value");
+        assert get(url(1) + "?action=get", oldCookie).equals("null");
+    }
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            PrintWriter writer = response.getWriter();
+            if ("init".equals(action))
+            {
+                HttpSession session = request.getSession(true);
+                session.setAttribute("attribute", "value");
+            }
+            else if ("get".equals(action))
+            {
+                HttpSession session = request.getSession(false);
+                writer.println(session == null ? null : session.getAttribute("attribute"));
+            }
+            else if ("invalidate".equals(action))
+            {
+                request.getSession(false).invalidate();
+            }
+            else if ("interval".equals(action))
+            {
+                request.getSession(false).setMaxInactiveInterval(Integer.parseInt(request.getParameter("secs")));
+            }
+            else if ("renew".equals(action))
+            {
+                TerracottaSessionManager sessionManager = (TerracottaSessionManager)((Request)request).getSessionManager();
+                sessionManager.renewSessionId((Request)request);
+            }
+            writer.flush();
+        }
+    }
+}